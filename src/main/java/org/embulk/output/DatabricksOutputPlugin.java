@@ -1,17 +1,36 @@
 package org.embulk.output;
 
+import com.databricks.sdk.core.DatabricksConfig;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.output.databricks.AdaptiveBatchSizer;
 import org.embulk.output.databricks.DatabricksAPIClient;
 import org.embulk.output.databricks.DatabricksCopyBatchInsert;
 import org.embulk.output.databricks.DatabricksOutputConnection;
 import org.embulk.output.databricks.DatabricksOutputConnector;
+import org.embulk.output.databricks.DatabricksOutputMetrics;
+import org.embulk.output.databricks.DatabricksStatementClient;
+import org.embulk.output.databricks.LocalStagingBudget;
+import org.embulk.output.databricks.MergeKeyRanges;
+import org.embulk.output.databricks.MergeProgress;
+import org.embulk.output.databricks.ParallelTableOperations;
+import org.embulk.output.databricks.ProgressReporter;
+import org.embulk.output.databricks.StagingFileSorter;
+import org.embulk.output.databricks.StagingVolumeCreator;
+import org.embulk.output.databricks.TableMetadataCache;
 import org.embulk.output.jdbc.*;
+import org.embulk.spi.Page;
 import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
 import org.embulk.util.config.Task;
@@ -21,6 +40,28 @@ import org.slf4j.LoggerFactory;
 public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
   protected final Logger logger = LoggerFactory.getLogger(getClass());
 
+  // The task report key of the number of rows loaded by the task.
+  private static final String LOADED_ROWS = "loaded_rows";
+  // The task report key of the ranges of the merge keys collected by MergeKeyRanges.
+  private static final String MERGE_KEY_RANGES = "merge_key_ranges";
+
+  // newBatchInsert doesn't receive the task index, so open passes it through this.
+  private static final ThreadLocal<Integer> currentTaskIndex = ThreadLocal.withInitial(() -> 0);
+
+  // newBatchInsert passes the ranges collected by the batch back to open through this.
+  private static final ThreadLocal<Optional<MergeKeyRanges>> currentMergeKeyRanges =
+      ThreadLocal.withInitial(Optional::empty);
+
+  // The number of rows loaded by all the tasks, set when they succeeded.
+  // It's empty if a task didn't report it.
+  private Optional<Long> transactionRows = Optional.empty();
+
+  // The ranges of the merge keys and of the partition columns of all the rows loaded by the tasks.
+  private Map<String, List<String>> transactionMergeKeyRanges = Collections.emptyMap();
+
+  // The statements of the merge completed in the transaction, kept across the retries of commit.
+  private MergeProgress mergeProgress = new MergeProgress();
+
   public interface DatabricksPluginTask extends PluginTask {
     @Config("driver_path")
     @ConfigDefault("null")
@@ -48,6 +89,10 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
     @ConfigDefault("null")
     public Optional<String> getOauth2ClientSecret();
 
+    @Config("oauth2_share_token")
+    @ConfigDefault("false")
+    public boolean getOauth2ShareToken();
+
     @Config("catalog_name")
     public String getCatalogName();
 
@@ -66,6 +111,130 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
     @ConfigDefault("false")
     public boolean getDeleteStageOnError();
 
+    @Config("run_id")
+    @ConfigDefault("null")
+    public Optional<String> getRunId();
+
+    @Config("staging_manifest")
+    @ConfigDefault("false")
+    public boolean getStagingManifest();
+
+    @Config("staging_file_name")
+    @ConfigDefault("\"random\"")
+    public String getStagingFileName();
+
+    @Config("max_local_staging_bytes")
+    @ConfigDefault("null")
+    public Optional<Long> getMaxLocalStagingBytes();
+
+    @Config("batch_size_mode")
+    @ConfigDefault("\"fixed\"") // fixed or auto
+    public String getBatchSizeMode();
+
+    @Config("min_batch_size")
+    @ConfigDefault("1048576")
+    public long getMinBatchSize();
+
+    @Config("max_batch_size")
+    @ConfigDefault("1073741824")
+    public long getMaxBatchSize();
+
+    @Config("batch_target_seconds")
+    @ConfigDefault("30.0")
+    public double getBatchTargetSeconds();
+
+    @Config("min_staging_file_size")
+    @ConfigDefault("0")
+    public long getMinStagingFileSize();
+
+    @Config("small_load_max_rows")
+    @ConfigDefault("0")
+    public int getSmallLoadMaxRows();
+
+    @Config("small_load_max_bytes")
+    @ConfigDefault("524288")
+    public long getSmallLoadMaxBytes();
+
+    @Config("sort_keys")
+    @ConfigDefault("null")
+    public Optional<List<String>> getSortKeys();
+
+    @Config("partition_by")
+    @ConfigDefault("null")
+    public Optional<List<String>> getPartitionBy();
+
+    @Config("max_open_partition_files")
+    @ConfigDefault("100")
+    public int getMaxOpenPartitionFiles();
+
+    @Config("merge_key_pruning")
+    @ConfigDefault("false")
+    public boolean getMergeKeyPruning();
+
+    @Config("merge_skip_unchanged")
+    @ConfigDefault("false")
+    public boolean getMergeSkipUnchanged();
+
+    @Config("table_properties")
+    @ConfigDefault("{}")
+    public Map<String, String> getTableProperties();
+
+    @Config("intermediate_table_properties")
+    @ConfigDefault("{}")
+    public Map<String, String> getIntermediateTableProperties();
+
+    @Config("cluster_by")
+    @ConfigDefault("null")
+    public Optional<List<String>> getClusterBy();
+
+    @Config("partitioned_by")
+    @ConfigDefault("null")
+    public Optional<List<String>> getPartitionedBy();
+
+    @Config("post_load_optimize")
+    @ConfigDefault("false")
+    public boolean getPostLoadOptimize();
+
+    @Config("post_load_optimize_zorder_by")
+    @ConfigDefault("null")
+    public Optional<List<String>> getPostLoadOptimizeZorderBy();
+
+    @Config("post_load_optimize_async")
+    @ConfigDefault("false")
+    public boolean getPostLoadOptimizeAsync();
+
+    @Config("merge_chunks")
+    @ConfigDefault("1")
+    public int getMergeChunks();
+
+    @Config("dedup_merge_keys")
+    @ConfigDefault("\"none\"") // none or last
+    public String getDedupMergeKeys();
+
+    @Config("dedup_memory_limit")
+    @ConfigDefault("67108864")
+    public long getDedupMemoryLimit();
+
+    @Config("progress_log_interval")
+    @ConfigDefault("0")
+    public long getProgressLogInterval();
+
+    @Config("progress_expected_rows")
+    @ConfigDefault("null")
+    public Optional<Long> getProgressExpectedRows();
+
+    @Config("setup_parallelism")
+    @ConfigDefault("1")
+    public int getSetupParallelism();
+
+    @Config("warm_up_warehouse")
+    @ConfigDefault("false")
+    public boolean getWarmUpWarehouse();
+
+    @Config("use_statement_execution_api")
+    @ConfigDefault("false")
+    public boolean getUseStatementExecutionApi();
+
     @Config("user_agent")
     @ConfigDefault("{}")
     public UserAgentEntry getUserAgentEntry();
@@ -91,8 +260,69 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
     static String fetchOauth2ClientSecret(DatabricksPluginTask t) {
       return validatePresence(t.getOauth2ClientSecret(), "oauth2_client_secret");
     }
+
+    // The SQL Statement Execution API runs statements on a SQL warehouse, whose http_path is
+    // /sql/1.0/warehouses/<warehouse id>.
+    static String fetchWarehouseId(DatabricksPluginTask t) {
+      Optional<String> warehouseId = findWarehouseId(t);
+      if (!warehouseId.isPresent()) {
+        throw new ConfigException(
+            String.format(
+                "http_path '%s' is not a SQL warehouse. use_statement_execution_api requires a SQL warehouse.",
+                t.getHTTPPath()));
+      }
+      return warehouseId.get();
+    }
+
+    static Optional<String> findWarehouseId(DatabricksPluginTask t) {
+      Matcher matcher = WAREHOUSE_HTTP_PATH_PATTERN.matcher(t.getHTTPPath());
+      return matcher.matches() ? Optional.of(matcher.group(1)) : Optional.empty();
+    }
+
+    static boolean isDeterministicStagingFileName(DatabricksPluginTask t) {
+      String stagingFileName = t.getStagingFileName();
+      switch (stagingFileName) {
+        case "random":
+          return false;
+        case "deterministic":
+          return true;
+        default:
+          throw new ConfigException(
+              String.format("unknown staging_file_name '%s'", stagingFileName));
+      }
+    }
+
+    static boolean isDedupMergeKeys(DatabricksPluginTask t) {
+      String dedupMergeKeys = t.getDedupMergeKeys();
+      switch (dedupMergeKeys) {
+        case "none":
+          return false;
+        case "last":
+          return true;
+        default:
+          throw new ConfigException(String.format("unknown dedup_merge_keys '%s'", dedupMergeKeys));
+      }
+    }
+
+    static boolean isAutoBatchSize(DatabricksPluginTask t) {
+      String batchSizeMode = t.getBatchSizeMode();
+      switch (batchSizeMode) {
+        case "fixed":
+          return false;
+        case "auto":
+          return true;
+        default:
+          throw new ConfigException(String.format("unknown batch_size_mode '%s'", batchSizeMode));
+      }
+    }
   }
 
+  private static final Pattern WAREHOUSE_HTTP_PATH_PATTERN =
+      Pattern.compile("^/?sql/1\\.0/(?:warehouses|endpoints)/([^/]+)/?$");
+
+  // https://docs.databricks.com/en/sql/language-manual/sql-ref-names.html
+  private static final Pattern RUN_ID_PATTERN = Pattern.compile("^[A-Za-z0-9_-]{1,100}$");
+
   static <T> T validatePresence(Optional<T> val, String varName) {
     if (val.isPresent()) {
       return val.get();
@@ -132,6 +362,7 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
     Properties props = new java.util.Properties();
     props.put("httpPath", t.getHTTPPath());
     String authType = t.getAuthType();
+    Optional<DatabricksConfig> accessTokenSource = Optional.empty();
     switch (authType) {
       case "pat":
         props.put("AuthMech", "3");
@@ -140,9 +371,15 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
         break;
       case "oauth-m2m":
         props.put("AuthMech", "11");
-        props.put("Auth_Flow", "1");
-        props.put("OAuth2ClientId", DatabricksPluginTask.fetchOauth2ClientId(t));
-        props.put("OAuth2Secret", DatabricksPluginTask.fetchOauth2ClientSecret(t));
+        if (t.getOauth2ShareToken()) {
+          // The token of the config shared in this JVM is passed through at each connect.
+          props.put("Auth_Flow", "0");
+          accessTokenSource = Optional.of(DatabricksAPIClient.createDatabricksConfig(t));
+        } else {
+          props.put("Auth_Flow", "1");
+          props.put("OAuth2ClientId", DatabricksPluginTask.fetchOauth2ClientId(t));
+          props.put("OAuth2Secret", DatabricksPluginTask.fetchOauth2ClientSecret(t));
+        }
         break;
       default:
         throw new ConfigException(String.format("unknown auth_type '%s'", authType));
@@ -157,9 +394,46 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
     String productVersion = t.getUserAgentEntry().getProductVersion();
     props.put("UserAgentEntry", productName + "/" + productVersion);
 
+    Optional<DatabricksStatementClient> statementClient = Optional.empty();
+    if (t.getUseStatementExecutionApi()) {
+      statementClient =
+          Optional.of(
+              new DatabricksStatementClient(
+                  DatabricksAPIClient.createDatabricksConfig(t),
+                  DatabricksPluginTask.fetchWarehouseId(t),
+                  t.getCatalogName(),
+                  t.getSchemaName()));
+    }
+
     logConnectionProperties(url, props);
     return new DatabricksOutputConnector(
-        url, props, t.getTransactionIsolation(), t.getCatalogName(), t.getSchemaName());
+        url,
+        props,
+        t.getTransactionIsolation(),
+        t.getCatalogName(),
+        t.getSchemaName(),
+        statementClient,
+        accessTokenSource,
+        t.getTableProperties(),
+        buildIntermediateTableProperties(t),
+        t.getClusterBy().orElse(Collections.emptyList()),
+        t.getPartitionedBy().orElse(Collections.emptyList()),
+        t.getMode() == Mode.REPLACE);
+  }
+
+  // The intermediate tables are written once and read through, so they don't need the statistics
+  // for data skipping nor the optimized writes. In replace mode, the intermediate table becomes the
+  // target table, so it has the properties of the target table instead.
+  private static Map<String, String> buildIntermediateTableProperties(DatabricksPluginTask t) {
+    if (t.getMode() == Mode.REPLACE) {
+      return t.getTableProperties();
+    }
+    Map<String, String> properties = new LinkedHashMap<>();
+    properties.put("delta.dataSkippingNumIndexedCols", "0");
+    properties.put("delta.autoOptimize.optimizeWrite", "false");
+    properties.put("delta.autoOptimize.autoCompact", "false");
+    properties.putAll(t.getIntermediateTableProperties());
+    return properties;
   }
 
   @Override
@@ -167,24 +441,389 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
       ConfigSource config, Schema schema, int taskCount, Control control) {
     DatabricksPluginTask t = (DatabricksPluginTask) CONFIG_MAPPER.map(config, this.getTaskClass());
     DatabricksAPIClient apiClient = DatabricksAPIClient.create(t);
+    if (t.getStagingManifest() && !t.getRunId().isPresent()) {
+      throw new ConfigException("run_id is required to enable staging_manifest.");
+    }
+    if (DatabricksPluginTask.isDeterministicStagingFileName(t) && !t.getRunId().isPresent()) {
+      // Without run_id, the volume and so the file names would be random in each run.
+      throw new ConfigException("run_id is required for staging_file_name deterministic.");
+    }
+    if (t.getRunId().isPresent() && !RUN_ID_PATTERN.matcher(t.getRunId().get()).matches()) {
+      // run_id is a part of the name of the staging volume and of the staged files
+      throw new ConfigException(
+          String.format(
+              "run_id '%s' must consist of 1 to 100 letters, digits, '_' and '-'.",
+              t.getRunId().get()));
+    }
+    if (t.getClusterBy().isPresent() && t.getPartitionedBy().isPresent()) {
+      throw new ConfigException("cluster_by and partitioned_by can't be used together.");
+    }
+    if (t.getClusterBy().isPresent() && t.getPostLoadOptimizeZorderBy().isPresent()) {
+      throw new ConfigException("post_load_optimize_zorder_by can't be used with cluster_by.");
+    }
+    if (t.getPostLoadOptimizeAsync() && !t.getUseStatementExecutionApi()) {
+      throw new ConfigException("post_load_optimize_async requires use_statement_execution_api.");
+    }
+    if (DatabricksPluginTask.isDedupMergeKeys(t) && t.getMode() != Mode.MERGE) {
+      throw new ConfigException("dedup_merge_keys is only available in merge mode.");
+    }
     String volumeName =
-        DatabricksAPIClient.fetchCurrentTransactionVolumeName(t.getStagingVolumeNamePrefix());
+        DatabricksAPIClient.fetchCurrentTransactionVolumeName(
+            t.getStagingVolumeNamePrefix(), t.getRunId());
+    boolean autoBatchSize = DatabricksPluginTask.isAutoBatchSize(t);
+    if (autoBatchSize
+        && (t.getStagingManifest() || DatabricksPluginTask.isDeterministicStagingFileName(t))) {
+      // The files of a rerun must have the same boundaries to be skipped, but the auto size
+      // follows the measured throughput and changes batch_size in the config diff.
+      throw new ConfigException(
+          "batch_size_mode auto can't be used with staging_manifest or staging_file_name deterministic.");
+    }
+    if (autoBatchSize) {
+      if (t.getMinBatchSize() <= 0) {
+        throw new ConfigException("min_batch_size must be greater than 0.");
+      }
+      if (t.getBatchTargetSeconds() <= 0) {
+        throw new ConfigException("batch_target_seconds must be greater than 0.");
+      }
+      if (t.getMinBatchSize() > t.getMaxBatchSize() || t.getMaxBatchSize() > Integer.MAX_VALUE) {
+        throw new ConfigException(
+            "min_batch_size must be less than or equal to max_batch_size, and max_batch_size must be less than or equal to 2147483647.");
+      }
+      AdaptiveBatchSizer sizer = AdaptiveBatchSizer.getInstance();
+      sizer.reset(
+          t.getBatchSize(), t.getMinBatchSize(), t.getMaxBatchSize(), t.getBatchTargetSeconds());
+      // The sizer measures the uploads in this JVM, so tasks on remote executors use batch_size.
+      logger.info("batch_size_mode auto only adjusts the batch size of tasks in this JVM.");
+    }
+    long minFlushSize = autoBatchSize ? t.getMinBatchSize() : t.getBatchSize();
+    if (t.getMinStagingFileSize() >= minFlushSize) {
+      throw new ConfigException(
+          "min_staging_file_size must be less than batch_size (min_batch_size if batch_size_mode is auto).");
+    }
+    if (t.getSmallLoadMaxRows() > 0 && t.getSmallLoadMaxBytes() >= minFlushSize) {
+      throw new ConfigException(
+          "small_load_max_bytes must be less than batch_size (min_batch_size if batch_size_mode is auto).");
+    }
+    long maxFlushSize = autoBatchSize ? t.getMaxBatchSize() : t.getBatchSize();
+    if (t.getSortKeys().isPresent() && maxFlushSize > StagingFileSorter.MAX_FILE_SIZE) {
+      // each staging file is sorted in memory
+      throw new ConfigException(
+          String.format(
+              "sort_keys can't be used with batch_size (max_batch_size if batch_size_mode is auto) greater than %d.",
+              StagingFileSorter.MAX_FILE_SIZE));
+    }
+    if (t.getMaxOpenPartitionFiles() <= 0) {
+      throw new ConfigException("max_open_partition_files must be greater than 0.");
+    }
+    if (t.getMergeChunks() <= 0) {
+      throw new ConfigException("merge_chunks must be greater than 0.");
+    }
+    if (t.getMaxLocalStagingBytes().isPresent() && t.getMaxLocalStagingBytes().get() <= 0) {
+      throw new ConfigException("max_local_staging_bytes must be greater than 0.");
+    }
+    if (t.getMergeChunks() > 1 && t.getMergeRule().isPresent()) {
+      // A rerun after a failure merges the chunks committed before again, which a merge_rule
+      // like T.c = T.c + S.c would count twice.
+      throw new ConfigException("merge_chunks can't be used with merge_rule.");
+    }
+    StagingVolumeCreator.getInstance().reset();
+    ProgressReporter.getInstance().reset(t.getProgressExpectedRows());
+    LocalStagingBudget.getInstance().reset(t.getMaxLocalStagingBytes());
+    if (t.getWarmUpWarehouse()) {
+      warmUpWarehouse(t);
+    }
     ConfigDiff configDiff;
+    TableMetadataCache.getInstance().begin();
+    transactionRows = Optional.empty();
+    transactionMergeKeyRanges = Collections.emptyMap();
+    mergeProgress = new MergeProgress();
     try {
-      apiClient.createVolume(t.getCatalogName(), t.getSchemaName(), volumeName);
-      configDiff = super.transaction(config, schema, taskCount, control);
+      // The staging volume is created by the tasks when they stage the first file.
+      configDiff =
+          super.transaction(
+              config,
+              schema,
+              taskCount,
+              taskSource -> {
+                List<TaskReport> taskReports = control.run(taskSource);
+                transactionRows = sumLoadedRows(taskReports);
+                transactionMergeKeyRanges = unionMergeKeyRanges(taskReports);
+                return taskReports;
+              });
+      if (t.getPostLoadOptimize() && !(transactionRows.isPresent() && transactionRows.get() == 0)) {
+        runPostLoadOptimize(t);
+      }
+      if (autoBatchSize) {
+        // the next run starts from the size chosen in this run
+        configDiff.set("batch_size", (int) AdaptiveBatchSizer.getInstance().getBatchSize());
+      }
       if (t.getDeleteStage()) {
-        apiClient.deleteVolume(t.getCatalogName(), t.getSchemaName(), volumeName);
+        apiClient.deleteVolumeIfExists(t.getCatalogName(), t.getSchemaName(), volumeName);
       }
     } catch (Exception e) {
       if (t.getDeleteStage() && t.getDeleteStageOnError()) {
-        apiClient.deleteVolume(t.getCatalogName(), t.getSchemaName(), volumeName);
+        apiClient.deleteVolumeIfExists(t.getCatalogName(), t.getSchemaName(), volumeName);
       }
       throw new RuntimeException(e);
+    } finally {
+      TableMetadataCache.getInstance().end();
     }
     return configDiff;
   }
 
+  // OPTIMIZE runs after the transaction is committed, so that a retried commit doesn't load the
+  // rows again. For the same reason, its failure is only logged.
+  private void runPostLoadOptimize(DatabricksPluginTask t) {
+    TableIdentifier table =
+        new TableIdentifier(t.getCatalogName(), t.getSchemaName(), t.getTable());
+    // Partitions of the loaded rows. The partition of NULL is not included in the ranges.
+    Map<String, List<String>> partitionRanges = new LinkedHashMap<>();
+    List<String> columnsWithoutRange = new ArrayList<>();
+    for (String column : t.getPartitionedBy().orElse(Collections.emptyList())) {
+      List<String> range = transactionMergeKeyRanges.get(column);
+      if (range != null) {
+        partitionRanges.put(column, range);
+      } else {
+        columnsWithoutRange.add(column);
+      }
+    }
+    if (!columnsWithoutRange.isEmpty()) {
+      // A column of an unsupported type or of only NULLs has no range.
+      if (partitionRanges.isEmpty()) {
+        // OPTIMIZE of the whole table would rewrite the partitions that weren't loaded.
+        logger.warn(
+            "Skipping OPTIMIZE because the partition columns {} of the loaded rows have no ranges",
+            columnsWithoutRange);
+        return;
+      }
+      logger.warn("OPTIMIZE is not limited by the partition columns {}", columnsWithoutRange);
+    }
+    List<String> zorderBy = t.getPostLoadOptimizeZorderBy().orElse(Collections.emptyList());
+    DatabricksOutputMetrics metrics = DatabricksOutputMetrics.getInstance();
+    long startTime = System.currentTimeMillis();
+    try (DatabricksOutputConnection con =
+        (DatabricksOutputConnection) getConnector(t, true).connect(true)) {
+      if (t.getPostLoadOptimizeAsync()) {
+        con.submitOptimize(table, partitionRanges, zorderBy)
+            .whenComplete(
+                (result, e) -> {
+                  long millis = System.currentTimeMillis() - startTime;
+                  metrics.recordOptimize(millis, e == null);
+                  if (e != null) {
+                    logger.warn("Failed to optimize {}: {}", t.getTable(), e.toString());
+                  } else {
+                    logger.info(String.format("Optimized (%.2f seconds)", millis / 1000.0));
+                  }
+                });
+        return;
+      }
+      con.runOptimize(table, partitionRanges, zorderBy);
+      metrics.recordOptimize(System.currentTimeMillis() - startTime, true);
+    } catch (SQLException | RuntimeException e) {
+      metrics.recordOptimize(System.currentTimeMillis() - startTime, false);
+      logger.warn("Failed to optimize {}: {}", t.getTable(), e.toString());
+    }
+  }
+
+  private static Optional<Long> sumLoadedRows(List<TaskReport> taskReports) {
+    long rows = 0;
+    for (TaskReport taskReport : taskReports) {
+      Long taskRows = taskReport.get(Long.class, LOADED_ROWS, null);
+      if (taskRows == null) {
+        return Optional.empty();
+      }
+      rows += taskRows;
+    }
+    return Optional.of(rows);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, List<String>> unionMergeKeyRanges(List<TaskReport> taskReports) {
+    List<Map<String, List<String>>> rangesList = new ArrayList<>();
+    for (TaskReport taskReport : taskReports) {
+      if (taskReport.get(Long.class, LOADED_ROWS, 0L) == 0) {
+        continue; // an empty task has no ranges
+      }
+      Map<String, List<String>> ranges = taskReport.get(Map.class, MERGE_KEY_RANGES, null);
+      if (ranges == null) {
+        return Collections.emptyMap();
+      }
+      rangesList.add(ranges);
+    }
+    return MergeKeyRanges.union(rangesList);
+  }
+
+  @Override
+  protected void doCommit(JdbcOutputConnection con, PluginTask task, int taskCount)
+      throws SQLException {
+    // Appending or merging no rows doesn't change the target table, so the aggregate and MERGE
+    // of the empty intermediate tables are skipped, unless before_load or after_load is run with
+    // them.
+    if (transactionRows.isPresent()
+        && transactionRows.get() == 0
+        && (task.getMode() == Mode.INSERT || task.getMode() == Mode.MERGE)
+        && !task.getBeforeLoad().isPresent()
+        && !task.getAfterLoad().isPresent()) {
+      logger.info("Skipping {} because no rows were loaded", task.getMode());
+      if (task.getNewTableSchema().isPresent()) {
+        con.createTableIfNotExists(
+            task.getActualTable(),
+            task.getNewTableSchema().get(),
+            task.getCreateTableConstraint(),
+            task.getCreateTableOption());
+      }
+      return;
+    }
+    if (task.getMode() == Mode.MERGE) {
+      DatabricksOutputConnection c = (DatabricksOutputConnection) con;
+      // The ranges may have been collected only for post_load_optimize.
+      c.setMergeKeyRanges(
+          ((DatabricksPluginTask) task).getMergeKeyPruning()
+              ? transactionMergeKeyRanges
+              : Collections.emptyMap());
+      c.setSkipUnchangedRows(((DatabricksPluginTask) task).getMergeSkipUnchanged());
+      c.setMergeChunks(((DatabricksPluginTask) task).getMergeChunks(), mergeProgress);
+    }
+    super.doCommit(con, task, taskCount);
+  }
+
+  @Override
+  protected List<TableIdentifier> createIntermediateTables(
+      JdbcOutputConnection con, PluginTask task, int taskCount, JdbcSchema newTableSchema)
+      throws SQLException {
+    DatabricksPluginTask t = (DatabricksPluginTask) task;
+    if (t.getSetupParallelism() <= 1) {
+      return super.createIntermediateTables(con, task, taskCount, newTableSchema);
+    }
+    // The names of the tables are decided by super, and the CREATE TABLEs run in parallel.
+    // A failed CREATE TABLE is not retried with another name. All the tables are dropped instead.
+    DatabricksOutputConnection c = (DatabricksOutputConnection) con;
+    try (ParallelTableOperations operations =
+        new ParallelTableOperations(getConnector(task, true), t.getSetupParallelism())) {
+      List<TableIdentifier> tables;
+      c.setDeferredTableOperations(operations);
+      try {
+        tables = super.createIntermediateTables(con, task, taskCount, newTableSchema);
+      } finally {
+        c.setDeferredTableOperations(null);
+      }
+      try {
+        operations.await();
+      } catch (SQLException e) {
+        for (TableIdentifier table : tables) {
+          operations.submit(x -> x.dropTableIfExists(table));
+        }
+        try {
+          operations.await();
+        } catch (SQLException dropFailure) {
+          e.addSuppressed(dropFailure);
+        }
+        throw e;
+      }
+      return tables;
+    }
+  }
+
+  @Override
+  protected void doCleanup(
+      JdbcOutputConnection con, PluginTask task, int taskCount, List<TaskReport> successTaskReports)
+      throws SQLException {
+    DatabricksPluginTask t = (DatabricksPluginTask) task;
+    if (t.getSetupParallelism() <= 1 || !task.getIntermediateTables().isPresent()) {
+      super.doCleanup(con, task, taskCount, successTaskReports);
+      return;
+    }
+    try (ParallelTableOperations operations =
+        new ParallelTableOperations(getConnector(task, true), t.getSetupParallelism())) {
+      for (TableIdentifier table : task.getIntermediateTables().get()) {
+        operations.submit(x -> x.dropTableIfExists(table));
+      }
+      operations.await();
+    }
+  }
+
+  // Starts the warehouse in the background, so that it starts up while the volume and the tables
+  // are created and the input is read, instead of delaying the first COPY.
+  private void warmUpWarehouse(DatabricksPluginTask t) {
+    CompletableFuture.runAsync(
+        () -> {
+          long startTime = System.currentTimeMillis();
+          try {
+            Optional<String> warehouseId = DatabricksPluginTask.findWarehouseId(t);
+            if (warehouseId.isPresent()) {
+              logger.info("Starting warehouse {}", warehouseId.get());
+              DatabricksAPIClient.create(t).startWarehouse(warehouseId.get());
+            } else {
+              // Connecting runs USE CATALOG and USE SCHEMA, which wait for the cluster to start.
+              logger.info("Warming up the cluster with a background connection");
+              getConnector(t, true).connect(true).close();
+              double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+              logger.info(String.format("Cluster is ready (%.2f seconds)", seconds));
+            }
+          } catch (Exception e) {
+            // the load itself waits for the warehouse anyway
+            logger.warn("Failed to warm up the warehouse: {}", e.toString());
+          }
+        });
+  }
+
+  @Override
+  public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+    currentTaskIndex.set(taskIndex);
+    try {
+      TransactionalPageOutput output = super.open(taskSource, schema, taskIndex);
+      return new ReportingPageOutput(output, currentMergeKeyRanges.get());
+    } finally {
+      currentTaskIndex.remove();
+      currentMergeKeyRanges.remove();
+    }
+  }
+
+  // Reports the number of rows of the task, so that transaction can tell an empty load,
+  // and the ranges of the merge keys to prune MERGE.
+  private static class ReportingPageOutput implements TransactionalPageOutput {
+    private final TransactionalPageOutput output;
+    private final Optional<MergeKeyRanges> mergeKeyRanges;
+    private long rows = 0;
+
+    private ReportingPageOutput(
+        TransactionalPageOutput output, Optional<MergeKeyRanges> mergeKeyRanges) {
+      this.output = output;
+      this.mergeKeyRanges = mergeKeyRanges;
+    }
+
+    @Override
+    public void add(Page page) {
+      output.add(page);
+      rows += page.getRecordCount();
+    }
+
+    @Override
+    public void finish() {
+      output.finish();
+    }
+
+    @Override
+    public void close() {
+      output.close();
+    }
+
+    @Override
+    public void abort() {
+      output.abort();
+    }
+
+    @Override
+    public TaskReport commit() {
+      TaskReport taskReport = output.commit();
+      taskReport.set(LOADED_ROWS, rows);
+      if (mergeKeyRanges.isPresent()) {
+        taskReport.set(MERGE_KEY_RANGES, mergeKeyRanges.get().toTaskReportValue());
+      }
+      return taskReport;
+    }
+  }
+
   @Override
   protected BatchInsert newBatchInsert(PluginTask task, Optional<MergeConfig> mergeConfig)
       throws IOException, SQLException {
@@ -193,20 +832,31 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
           "Databricks output plugin doesn't support 'merge_direct' mode. Use 'merge' mode instead.");
     }
     DatabricksPluginTask t = (DatabricksPluginTask) task;
+    String volumeName =
+        DatabricksAPIClient.fetchCurrentTransactionVolumeName(
+            t.getStagingVolumeNamePrefix(), t.getRunId());
+    // The ranges of the partition columns are collected for the predicate of OPTIMIZE.
+    Set<String> rangeColumns = new LinkedHashSet<>();
+    if (t.getMergeKeyPruning() && t.getMode() == Mode.MERGE && t.getMergeKeys().isPresent()) {
+      rangeColumns.addAll(t.getMergeKeys().get());
+    }
+    if (t.getPostLoadOptimize()) {
+      t.getPartitionedBy().ifPresent(rangeColumns::addAll);
+    }
+    Optional<MergeKeyRanges> mergeKeyRanges = Optional.empty();
+    if (!rangeColumns.isEmpty()) {
+      mergeKeyRanges =
+          Optional.of(
+              MergeKeyRanges.create(task.getTargetTableSchema(), new ArrayList<>(rangeColumns)));
+    }
+    currentMergeKeyRanges.set(mergeKeyRanges);
     return new DatabricksCopyBatchInsert(
-        getConnector(task, true),
-        task.getTargetTableSchema(),
-        DatabricksAPIClient.createDatabricksConfig(t),
-        t.getCatalogName(),
-        t.getSchemaName(),
-        DatabricksAPIClient.fetchCurrentTransactionVolumeName(t.getStagingVolumeNamePrefix()),
-        t.getDeleteStage(),
-        t.getDeleteStageOnError());
+        t, getConnector(task, true), volumeName, mergeKeyRanges, currentTaskIndex.get());
   }
 
   @Override
   protected void logConnectionProperties(String url, Properties props) {
-    List<String> maskedKeys = Arrays.asList("PWD", "OAuth2Secret");
+    List<String> maskedKeys = Arrays.asList("PWD", "OAuth2Secret", "Auth_AccessToken");
     Properties maskedProps = new Properties();
     for (Object keyObj : props.keySet()) {
       String key = (String) keyObj;
@@ -218,8 +868,9 @@ public class DatabricksOutputPlugin extends AbstractJdbcOutputPlugin {
 
   public Optional<JdbcSchema> newJdbcSchemaFromTableIfExists(
       JdbcOutputConnection connection, TableIdentifier table) throws SQLException {
-    return super.newJdbcSchemaFromTableIfExists(
-        connection,
-        ((DatabricksOutputConnection) connection).currentConnectionTableIdentifier(table));
+    TableIdentifier identifier =
+        ((DatabricksOutputConnection) connection).currentConnectionTableIdentifier(table);
+    return TableMetadataCache.getInstance()
+        .getSchema(identifier, () -> super.newJdbcSchemaFromTableIfExists(connection, identifier));
   }
 }
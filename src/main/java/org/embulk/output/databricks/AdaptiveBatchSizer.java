@@ -0,0 +1,107 @@
+package org.embulk.output.databricks;
+
+// Chooses the size of staging files from the measured upload throughput and COPY cost.
+// It is shared by all tasks in the JVM, because they share the same network link and warehouse.
+public class AdaptiveBatchSizer {
+  private static final AdaptiveBatchSizer instance = new AdaptiveBatchSizer();
+
+  public static AdaptiveBatchSizer getInstance() {
+    return instance;
+  }
+
+  // Weight of the latest measurement in the moving average of the upload throughput.
+  private static final double UPLOAD_RATE_SMOOTHING = 0.3;
+  // A file is made large enough that the fixed cost of its COPY is at most 1/(1+N) of its time.
+  private static final double MIN_TRANSFER_TO_OVERHEAD_RATIO = 4.0;
+
+  private long minBytes = 1;
+  private long maxBytes = Long.MAX_VALUE;
+  private double targetSeconds = 0;
+  private long batchSize = 0;
+
+  private double uploadBytesPerSecond = 0;
+
+  // Sums for the least squares fit of "COPY seconds = overhead + bytes / rate".
+  private long copyCount = 0;
+  private double copyBytesSum = 0;
+  private double copySecondsSum = 0;
+  private double copyBytesSquareSum = 0;
+  private double copyBytesSecondsSum = 0;
+
+  AdaptiveBatchSizer() {}
+
+  public synchronized void reset(
+      long initialBytes, long minBytes, long maxBytes, double targetSeconds) {
+    this.minBytes = minBytes;
+    this.maxBytes = maxBytes;
+    this.targetSeconds = targetSeconds;
+    this.batchSize = clamp(initialBytes);
+    this.uploadBytesPerSecond = 0;
+    this.copyCount = 0;
+    this.copyBytesSum = 0;
+    this.copySecondsSum = 0;
+    this.copyBytesSquareSum = 0;
+    this.copyBytesSecondsSum = 0;
+  }
+
+  public synchronized long getBatchSize() {
+    return batchSize;
+  }
+
+  // False in a JVM where transaction() didn't run, e.g. a remote executor.
+  public synchronized boolean isInitialized() {
+    return batchSize > 0;
+  }
+
+  public synchronized void recordUpload(long bytes, double seconds) {
+    if (bytes <= 0 || seconds <= 0) {
+      return;
+    }
+    double bytesPerSecond = bytes / seconds;
+    if (uploadBytesPerSecond == 0) {
+      uploadBytesPerSecond = bytesPerSecond;
+    } else {
+      uploadBytesPerSecond =
+          UPLOAD_RATE_SMOOTHING * bytesPerSecond
+              + (1 - UPLOAD_RATE_SMOOTHING) * uploadBytesPerSecond;
+    }
+    adjust();
+  }
+
+  public synchronized void recordCopy(long bytes, double seconds) {
+    copyCount++;
+    copyBytesSum += bytes;
+    copySecondsSum += seconds;
+    copyBytesSquareSum += (double) bytes * bytes;
+    copyBytesSecondsSum += bytes * seconds;
+    adjust();
+  }
+
+  synchronized double getCopyOverheadSeconds() {
+    if (copyCount == 0) {
+      return 0;
+    }
+    double denominator = copyCount * copyBytesSquareSum - copyBytesSum * copyBytesSum;
+    if (copyCount < 2 || denominator <= 0) {
+      // All files have the same size so far, so the overhead can't be separated from the
+      // size dependent part. Assume that the whole COPY time is overhead.
+      return copySecondsSum / copyCount;
+    }
+    double slope = (copyCount * copyBytesSecondsSum - copyBytesSum * copySecondsSum) / denominator;
+    double intercept = (copySecondsSum - slope * copyBytesSum) / copyCount;
+    return Math.max(0, intercept);
+  }
+
+  private void adjust() {
+    if (!isInitialized() || uploadBytesPerSecond == 0) {
+      return;
+    }
+    double seconds =
+        Math.max(targetSeconds, getCopyOverheadSeconds() * MIN_TRANSFER_TO_OVERHEAD_RATIO);
+    batchSize = clamp((long) Math.min(Long.MAX_VALUE, uploadBytesPerSecond * seconds));
+  }
+
+  private long clamp(long bytes) {
+    return Math.max(minBytes, Math.min(maxBytes, bytes));
+  }
+}
@@ -0,0 +1,159 @@
+package org.embulk.output.databricks;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+
+// Runs SQL statements through the SQL Statement Execution API. Statements are submitted without
+// waiting for them, and one scheduler thread polls all of them, so that many statements can be in
+// flight without holding a thread and a JDBC connection each.
+public class AsyncStatementExecutor {
+  private static final AsyncStatementExecutor instance = new AsyncStatementExecutor(500, 1000);
+
+  // A statement whose status can't be fetched this many times in a row is cancelled and failed.
+  private static final int MAX_POLL_FAILURES = 8;
+  private static final long MAX_RETRY_INTERVAL_MILLIS = 30 * 1000;
+
+  public static AsyncStatementExecutor getInstance() {
+    return instance;
+  }
+
+  public interface Client {
+    // Returns the id of the statement submitted without waiting for its result.
+    String submit(String statement);
+
+    // Returns true if the statement succeeded, and false if it's still running.
+    // Throws SQLException if it failed or was cancelled.
+    boolean poll(String statementId) throws SQLException;
+
+    void cancel(String statementId);
+  }
+
+  private static class RunningStatement {
+    private final Client client;
+    private final CompletableFuture<Void> future;
+    // only accessed by the poller
+    private int pollFailures = 0;
+    private long nextPollMillis = 0;
+
+    private RunningStatement(Client client, CompletableFuture<Void> future) {
+      this.client = client;
+      this.future = future;
+    }
+  }
+
+  private final Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());
+  private final Map<String, RunningStatement> runningStatements = new ConcurrentHashMap<>();
+  private final long retryIntervalMillis;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "embulk-output-databricks-statement-poller");
+            thread.setDaemon(true);
+            return thread;
+          });
+  // Runs the work after statements complete, e.g. deleting the staged files, so that a slow call
+  // doesn't stall the poller. It's not owned by a task, which may be closed by then.
+  private final ExecutorService completionExecutor =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread thread = new Thread(r, "embulk-output-databricks-statement-completion");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  AsyncStatementExecutor(long pollIntervalMillis, long retryIntervalMillis) {
+    this.retryIntervalMillis = retryIntervalMillis;
+    scheduler.scheduleWithFixedDelay(
+        this::pollAll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Cancelling the returned future cancels the statement.
+  public CompletableFuture<Void> submit(Client client, String statement) {
+    String statementId = client.submit(statement);
+    logger.info("Submitted statement {}", statementId);
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    runningStatements.put(statementId, new RunningStatement(client, future));
+    return future;
+  }
+
+  public void execute(Client client, String statement) throws SQLException {
+    CompletableFuture<Void> future = submit(client, statement);
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  public Executor getCompletionExecutor() {
+    return completionExecutor;
+  }
+
+  public int getRunningStatementCount() {
+    return runningStatements.size();
+  }
+
+  void pollAll() {
+    for (Map.Entry<String, RunningStatement> entry : runningStatements.entrySet()) {
+      String statementId = entry.getKey();
+      RunningStatement statement = entry.getValue();
+      try {
+        if (statement.future.isCancelled()) {
+          runningStatements.remove(statementId);
+          logger.info("Cancelling statement {}", statementId);
+          statement.client.cancel(statementId);
+        } else if (System.currentTimeMillis() < statement.nextPollMillis) {
+          continue;
+        } else if (statement.client.poll(statementId)) {
+          runningStatements.remove(statementId);
+          statement.future.complete(null);
+        } else {
+          statement.pollFailures = 0;
+        }
+      } catch (SQLException e) {
+        // the statement failed or was cancelled on the warehouse
+        runningStatements.remove(statementId);
+        statement.future.completeExceptionally(e);
+      } catch (RuntimeException e) {
+        // an exception would stop the schedule, so it's handled for each statement
+        onPollFailure(statementId, statement, e);
+      }
+    }
+  }
+
+  // The status API may fail transiently, e.g. by 429, 5xx or network errors. The statement keeps
+  // running meanwhile, so it's polled again later, and cancelled if it can't be polled anymore.
+  private void onPollFailure(String statementId, RunningStatement statement, RuntimeException e) {
+    statement.pollFailures++;
+    if (statement.pollFailures < MAX_POLL_FAILURES) {
+      long interval =
+          Math.min(retryIntervalMillis << (statement.pollFailures - 1), MAX_RETRY_INTERVAL_MILLIS);
+      statement.nextPollMillis = System.currentTimeMillis() + interval;
+      logger.warn(
+          "Failed to poll statement {}, retrying in {} ms: {}", statementId, interval, e.toString());
+      return;
+    }
+    runningStatements.remove(statementId);
+    try {
+      statement.client.cancel(statementId);
+    } catch (RuntimeException cancelError) {
+      logger.warn("Failed to cancel statement {}: {}", statementId, cancelError.toString());
+    }
+    statement.future.completeExceptionally(e);
+  }
+}
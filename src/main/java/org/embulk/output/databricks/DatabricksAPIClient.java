@@ -2,12 +2,23 @@ package org.embulk.output.databricks;
 
 import com.databricks.sdk.WorkspaceClient;
 import com.databricks.sdk.core.DatabricksConfig;
+import com.databricks.sdk.core.DatabricksError;
 import com.databricks.sdk.core.UserAgent;
 import com.databricks.sdk.service.catalog.VolumeType;
+import com.databricks.sdk.service.files.UploadRequest;
+import com.databricks.sdk.service.sql.ExecuteStatementRequest;
+import com.databricks.sdk.service.sql.ExecuteStatementRequestOnWaitTimeout;
+import com.databricks.sdk.service.sql.StatementStatus;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import org.embulk.config.ConfigException;
 import org.embulk.output.DatabricksOutputPlugin.DatabricksPluginTask;
 
@@ -33,41 +44,164 @@ public class DatabricksAPIClient {
 
   public void createVolume(String catalogName, String schemaName, String volumeName) {
     // https://docs.databricks.com/api/workspace/volumes/create
-    workspaceClient.volumes().create(catalogName, schemaName, volumeName, VolumeType.MANAGED);
+    callApi(
+        () ->
+            workspaceClient
+                .volumes()
+                .create(catalogName, schemaName, volumeName, VolumeType.MANAGED));
+  }
+
+  public void createVolumeIfNotExists(String catalogName, String schemaName, String volumeName) {
+    try {
+      createVolume(catalogName, schemaName, volumeName);
+    } catch (DatabricksError e) {
+      if (!"RESOURCE_ALREADY_EXISTS".equals(e.getErrorCode())) {
+        throw e;
+      }
+    }
   }
 
   public void deleteVolume(String catalogName, String schemaName, String volumeName) {
     // https://docs.databricks.com/api/workspace/volumes/delete
     String name = String.format("%s.%s.%s", catalogName, schemaName, volumeName);
-    workspaceClient.volumes().delete(name);
+    callApi(() -> workspaceClient.volumes().delete(name));
+  }
+
+  // The volume is created lazily by the tasks, so it doesn't exist if nothing was staged.
+  public void deleteVolumeIfExists(String catalogName, String schemaName, String volumeName) {
+    try {
+      deleteVolume(catalogName, schemaName, volumeName);
+    } catch (DatabricksError e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+    }
   }
 
-  public void uploadFile(String filePath, InputStream inputStream) {
+  public void uploadFile(String filePath, InputStream inputStream, boolean overwrite) {
     // https://docs.databricks.com/api/workspace/files/upload
-    workspaceClient.files().upload(filePath, inputStream);
+    UploadRequest request =
+        new UploadRequest().setFilePath(filePath).setContents(inputStream).setOverwrite(overwrite);
+    callApi(() -> workspaceClient.files().upload(request));
+  }
+
+  public Optional<InputStream> downloadFileIfExists(String filePath) {
+    // https://docs.databricks.com/api/workspace/files/download
+    try {
+      return Optional.of(fetchApi(() -> workspaceClient.files().download(filePath).getContents()));
+    } catch (DatabricksError e) {
+      if (e.getStatusCode() == 404) {
+        return Optional.empty();
+      }
+      throw e;
+    }
+  }
+
+  public Optional<Long> fetchFileSizeIfExists(String filePath) {
+    // https://docs.databricks.com/api/workspace/files/getmetadata
+    try {
+      return Optional.ofNullable(
+          fetchApi(() -> workspaceClient.files().getMetadata(filePath).getContentLength()));
+    } catch (DatabricksError e) {
+      if (e.getStatusCode() == 404) {
+        return Optional.empty();
+      }
+      throw e;
+    }
   }
 
   public void deleteFile(String filePath) {
     // https://docs.databricks.com/api/workspace/files/upload
-    workspaceClient.files().delete(filePath);
+    callApi(() -> workspaceClient.files().delete(filePath));
   }
 
+  public void startWarehouse(String warehouseId) {
+    // https://docs.databricks.com/api/workspace/warehouses/start
+    // This doesn't wait for the warehouse to be running.
+    callApi(() -> workspaceClient.warehouses().start(warehouseId));
+  }
+
+  public String submitStatement(
+      String warehouseId, String catalogName, String schemaName, String statement) {
+    // https://docs.databricks.com/api/workspace/statementexecution/executestatement
+    ExecuteStatementRequest request =
+        new ExecuteStatementRequest()
+            .setWarehouseId(warehouseId)
+            .setCatalog(catalogName)
+            .setSchema(schemaName)
+            .setStatement(statement)
+            .setWaitTimeout("0s")
+            .setOnWaitTimeout(ExecuteStatementRequestOnWaitTimeout.CONTINUE);
+    return fetchApi(
+        () -> workspaceClient.statementExecution().executeStatement(request).getStatementId());
+  }
+
+  public StatementStatus fetchStatementStatus(String statementId) {
+    // https://docs.databricks.com/api/workspace/statementexecution/getstatement
+    return fetchApi(
+        () -> workspaceClient.statementExecution().getStatement(statementId).getStatus());
+  }
+
+  public void cancelStatement(String statementId) {
+    // https://docs.databricks.com/api/workspace/statementexecution/cancelexecution
+    callApi(() -> workspaceClient.statementExecution().cancelExecution(statementId));
+  }
+
+  private void callApi(Runnable api) {
+    fetchApi(
+        () -> {
+          api.run();
+          return null;
+        });
+  }
+
+  private <T> T fetchApi(Supplier<T> api) {
+    try {
+      T result = api.get();
+      DatabricksOutputMetrics.getInstance().recordApiRequest(true);
+      return result;
+    } catch (RuntimeException e) {
+      DatabricksOutputMetrics.getInstance().recordApiRequest(false);
+      throw e;
+    }
+  }
+
+  // A config caches its OAuth token and refreshes it when it expires, so the clients and the tasks
+  // in this JVM share one config per client id instead of fetching a token each.
+  private static final Map<List<String>, DatabricksConfig> sharedOAuthConfigs =
+      new ConcurrentHashMap<>();
+
   public static DatabricksConfig createDatabricksConfig(DatabricksPluginTask task) {
-    DatabricksConfig config = new DatabricksConfig().setHost(task.getServerHostname());
     String authType = task.getAuthType();
-    config.setAuthType(authType);
     switch (authType) {
       case "pat":
-        config.setToken(DatabricksPluginTask.fetchPersonalAccessToken(task));
-        break;
+        return new DatabricksConfig()
+            .setHost(task.getServerHostname())
+            .setAuthType(authType)
+            .setToken(DatabricksPluginTask.fetchPersonalAccessToken(task));
       case "oauth-m2m":
-        config.setClientId(DatabricksPluginTask.fetchOauth2ClientId(task));
-        config.setClientSecret(DatabricksPluginTask.fetchOauth2ClientSecret(task));
-        break;
+        String clientId = DatabricksPluginTask.fetchOauth2ClientId(task);
+        String clientSecret = DatabricksPluginTask.fetchOauth2ClientSecret(task);
+        return sharedOAuthConfigs.computeIfAbsent(
+            Arrays.asList(task.getServerHostname(), clientId, clientSecret),
+            key ->
+                new DatabricksConfig()
+                    .setHost(task.getServerHostname())
+                    .setAuthType(authType)
+                    .setClientId(clientId)
+                    .setClientSecret(clientSecret));
       default:
         throw new ConfigException(String.format("unknown auth_type '%s'", authType));
     }
-    return config;
+  }
+
+  // Returns the current token of the config, which is refreshed by the config when it expires.
+  public static String fetchAccessToken(DatabricksConfig config) {
+    String authorization = config.authenticate().get("Authorization");
+    if (authorization == null || !authorization.startsWith("Bearer ")) {
+      throw new RuntimeException("Failed to get an OAuth access token.");
+    }
+    return authorization.substring("Bearer ".length());
   }
 
   public static String createFilePath(
@@ -77,9 +211,11 @@ public class DatabricksAPIClient {
 
   private static String currentTransactionVolumeName = null;
 
-  public static String fetchCurrentTransactionVolumeName(String prefix) {
+  public static String fetchCurrentTransactionVolumeName(String prefix, Optional<String> runId) {
     if (currentTransactionVolumeName == null) {
-      currentTransactionVolumeName = prefix + createRandomUnityCatalogObjectName();
+      // A run with the same run_id uses the same volume to resume from the files staged before.
+      currentTransactionVolumeName =
+          prefix + runId.orElseGet(DatabricksAPIClient::createRandomUnityCatalogObjectName);
     }
     return currentTransactionVolumeName;
   }
@@ -2,11 +2,24 @@ package org.embulk.output.databricks;
 
 import com.databricks.sdk.core.DatabricksConfig;
 import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.embulk.output.DatabricksOutputPlugin.DatabricksPluginTask;
 import org.embulk.output.jdbc.JdbcOutputConnector;
 import org.embulk.output.jdbc.JdbcSchema;
 import org.embulk.output.jdbc.TableIdentifier;
@@ -14,9 +27,16 @@ import org.embulk.output.postgresql.AbstractPostgreSQLCopyBatchInsert;
 import org.slf4j.Logger;
 
 public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert {
+  // The Databricks JDBC driver accepts up to 256 parameters in a statement.
+  private static final int MAX_INSERT_PARAMETERS = 256;
+  private static final int MANIFEST_SEGMENT_ENTRIES = 100;
+
   private final Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());
   private TableIdentifier tableIdentifier = null;
-  private final ExecutorService executorService;
+  // catalog.schema.table of tableIdentifier, recorded in the manifest as the table loaded into
+  private String loadTableName = null;
+  private final ThreadPoolExecutor executorService;
+  private final DatabricksOutputMetrics metrics;
   private final JdbcOutputConnector connector;
   private final JdbcSchema targetTableSchema;
   private final DatabricksConfig databricksConfig;
@@ -25,38 +45,213 @@ public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert
   private final String volumeName;
   private final boolean deleteStage;
   private final boolean deleteStageOnError;
+  private final LocalStagingBudget localStagingBudget;
+  private final int batchSize;
+  private final Optional<AdaptiveBatchSizer> adaptiveBatchSizer;
+  private final long minStagingFileSize;
+  private final Optional<StagingFileSorter> stagingFileSorter;
+  private final Optional<StagingFilePartitioner> stagingFilePartitioner;
+  private final Optional<MergeKeyRanges> mergeKeyRanges;
+  private final Optional<StagingFileDeduplicator> stagingFileDeduplicator;
+  private final int smallLoadMaxRows;
+  private final long smallLoadMaxBytes;
+  // rows already inserted by insertSmallLoad, so that a retried finish doesn't insert them again
+  private int smallLoadInsertedRows = 0;
+  private boolean finished = false;
   private DatabricksOutputConnection connection = null;
   private final List<Future<Void>> uploadAndCopyFutures;
+  private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+  private final Set<DatabricksOutputConnection> runningCopyConnections =
+      ConcurrentHashMap.newKeySet();
+  private final Set<Future<Void>> runningCopyStatements = ConcurrentHashMap.newKeySet();
+  // Uploads submitted to the executor and not finished yet. The file and the budget of an upload
+  // cancelled before it started are released by discardUnstartedUploads().
+  private final Set<UploadTask> queuedUploadTasks = ConcurrentHashMap.newKeySet();
+  private final int taskIndex;
+  private final boolean stagingManifest;
+  private final Optional<String> deterministicFileNamePrefix;
+  private Optional<StagingManifest> manifest = Optional.empty();
+  private DatabricksAPIClient manifestApiClient = null;
+  // Entries not saved yet. They are saved as the next segment when enough of them are collected.
+  private final List<StagingManifest.Entry> unsavedManifestEntries = new ArrayList<>();
+  private final Object manifestSaveLock = new Object();
+  private int manifestSegmentCount = 0;
+  private long stagedFileSequence = 0;
+  // Not initialized here because openWriter is called by the constructor of the super class.
+  private MessageDigest currentFileDigest;
+  private final long progressLogInterval;
+  private boolean progressRegistered = false;
+  private LoadProgress progress = new LoadProgress();
   private long totalRows;
   private int fileCount;
 
   public DatabricksCopyBatchInsert(
+      DatabricksPluginTask task,
       JdbcOutputConnector connector,
-      JdbcSchema targetTableSchema,
-      DatabricksConfig databricksConfig,
-      String catalogName,
-      String schemaName,
       String volumeName,
-      boolean deleteStage,
-      boolean deleteStageOnError)
+      Optional<MergeKeyRanges> mergeKeyRanges,
+      int taskIndex)
       throws IOException {
     this.connector = connector;
-    this.targetTableSchema = targetTableSchema;
-    this.databricksConfig = databricksConfig;
-    this.catalogName = catalogName;
-    this.schemaName = schemaName;
+    this.targetTableSchema = task.getTargetTableSchema();
+    this.databricksConfig = DatabricksAPIClient.createDatabricksConfig(task);
+    this.catalogName = task.getCatalogName();
+    this.schemaName = task.getSchemaName();
     this.volumeName = volumeName;
     // TODO: UploadThreadsPerTask
-    this.executorService = Executors.newCachedThreadPool();
-    this.uploadAndCopyFutures = new ArrayList<>();
-    this.deleteStage = deleteStage;
-    this.deleteStageOnError = deleteStageOnError;
+    this.executorService = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+    this.metrics = DatabricksOutputMetrics.getInstance();
+    this.uploadAndCopyFutures = new CopyOnWriteArrayList<>();
+    metrics.registerExecutor(executorService, uploadAndCopyFutures);
+    this.deleteStage = task.getDeleteStage();
+    this.deleteStageOnError = task.getDeleteStageOnError();
+    this.localStagingBudget = LocalStagingBudget.getInstance();
+    // keyed by the volume, which is created for each transaction
+    localStagingBudget.configure(volumeName, task.getMaxLocalStagingBytes());
+    this.batchSize = task.getBatchSize();
+    boolean autoBatchSize = DatabricksPluginTask.isAutoBatchSize(task);
+    if (autoBatchSize && AdaptiveBatchSizer.getInstance().isInitialized()) {
+      this.adaptiveBatchSizer = Optional.of(AdaptiveBatchSizer.getInstance());
+    } else {
+      if (autoBatchSize) {
+        logger.warn("The batch size isn't adjusted in this JVM. Using batch_size instead.");
+      }
+      this.adaptiveBatchSizer = Optional.empty();
+    }
+    this.minStagingFileSize = task.getMinStagingFileSize();
+    this.smallLoadMaxRows = task.getSmallLoadMaxRows();
+    this.smallLoadMaxBytes = task.getSmallLoadMaxBytes();
+    this.stagingFileSorter =
+        task.getSortKeys().map(keys -> StagingFileSorter.create(targetTableSchema, keys));
+    this.stagingFilePartitioner =
+        task.getPartitionBy()
+            .map(
+                columns ->
+                    StagingFilePartitioner.create(
+                        targetTableSchema, columns, task.getMaxOpenPartitionFiles()));
+    this.mergeKeyRanges = mergeKeyRanges;
+    if (DatabricksPluginTask.isDedupMergeKeys(task)) {
+      this.stagingFileDeduplicator =
+          task.getMergeKeys()
+              .map(
+                  keys ->
+                      StagingFileDeduplicator.create(
+                          targetTableSchema, keys, task.getDedupMemoryLimit()));
+    } else {
+      this.stagingFileDeduplicator = Optional.empty();
+    }
+    this.progressLogInterval = task.getProgressLogInterval();
+    this.taskIndex = taskIndex;
+    this.stagingManifest = task.getStagingManifest();
+    if (DatabricksPluginTask.isDeterministicStagingFileName(task) || stagingManifest) {
+      // The manifest is saved in batches, so the files staged after the last save also get the
+      // same names in a rerun, and COPY INTO skips them if they were loaded.
+      // run_id is required by both of them
+      this.deterministicFileNamePrefix = Optional.of(task.getRunId().get());
+    } else {
+      this.deterministicFileNamePrefix = Optional.empty();
+    }
   }
 
   @Override
   public void prepare(TableIdentifier loadTable, JdbcSchema insertSchema) throws SQLException {
     this.connection = (DatabricksOutputConnection) connector.connect(true);
     this.tableIdentifier = loadTable;
+    TableIdentifier fullTable = connection.currentConnectionTableIdentifier(loadTable);
+    this.loadTableName =
+        String.format(
+            "%s.%s.%s",
+            fullTable.getDatabase(), fullTable.getSchemaName(), fullTable.getTableName());
+    if (stagingManifest) {
+      this.manifestApiClient = new DatabricksAPIClient(databricksConfig);
+      this.manifest = Optional.of(loadManifest());
+    }
+    this.progress = ProgressReporter.getInstance().register(taskIndex, progressLogInterval);
+    this.progressRegistered = true;
+  }
+
+  @Override
+  public void add() throws IOException {
+    mergeKeyRanges.ifPresent(MergeKeyRanges::endRow);
+    super.add();
+    progress.addEncodedRow();
+  }
+
+  // The setters of the merge keys collect their ranges.
+  // The index of the column just set is index - 1.
+
+  @Override
+  public void setNull(int sqlType) throws IOException {
+    super.setNull(sqlType);
+    mergeKeyRanges.ifPresent(x -> x.observeNull(index - 1));
+  }
+
+  @Override
+  public void setByte(byte v) throws IOException {
+    super.setByte(v);
+    mergeKeyRanges.ifPresent(x -> x.observeNumber(index - 1, BigDecimal.valueOf(v)));
+  }
+
+  @Override
+  public void setShort(short v) throws IOException {
+    super.setShort(v);
+    mergeKeyRanges.ifPresent(x -> x.observeNumber(index - 1, BigDecimal.valueOf(v)));
+  }
+
+  @Override
+  public void setInt(int v) throws IOException {
+    super.setInt(v);
+    mergeKeyRanges.ifPresent(x -> x.observeNumber(index - 1, BigDecimal.valueOf(v)));
+  }
+
+  @Override
+  public void setLong(long v) throws IOException {
+    super.setLong(v);
+    mergeKeyRanges.ifPresent(x -> x.observeNumber(index - 1, BigDecimal.valueOf(v)));
+  }
+
+  @Override
+  public void setBigDecimal(BigDecimal v) throws IOException {
+    super.setBigDecimal(v);
+    mergeKeyRanges.ifPresent(x -> x.observeNumber(index - 1, v));
+  }
+
+  @Override
+  public void setString(String v) throws IOException {
+    super.setString(v);
+    mergeKeyRanges.ifPresent(x -> x.observeString(index - 1, v));
+  }
+
+  @Override
+  public void setNString(String v) throws IOException {
+    super.setNString(v);
+    mergeKeyRanges.ifPresent(x -> x.observeString(index - 1, v));
+  }
+
+  @Override
+  public void setSqlDate(Instant v, Calendar cal) throws IOException {
+    super.setSqlDate(v, cal);
+    // the date is written in the time zone of cal
+    mergeKeyRanges.ifPresent(
+        x -> x.observeDate(index - 1, v.atZone(cal.getTimeZone().toZoneId()).toLocalDate()));
+  }
+
+  @Override
+  public void setSqlTimestamp(Instant v, Calendar cal) throws IOException {
+    super.setSqlTimestamp(v, cal);
+    mergeKeyRanges.ifPresent(x -> x.observeTimestamp(index - 1, v));
+  }
+
+  @Override
+  public int getBatchWeight() {
+    int weight = super.getBatchWeight();
+    if (!adaptiveBatchSizer.isPresent()) {
+      return weight;
+    }
+    // The caller flushes when the weight exceeds batch_size,
+    // so scale the weight to flush at the adaptive threshold instead.
+    double scale = (double) batchSize / adaptiveBatchSizer.get().getBatchSize();
+    return (int) Math.min(Integer.MAX_VALUE, weight * scale);
   }
 
   @Override
@@ -66,8 +261,18 @@ public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert
       executorService.awaitTermination(60, TimeUnit.SECONDS);
     } catch (InterruptedException e) {
     }
+    discardUnstartedUploads();
+    metrics.unregisterExecutor(executorService);
+    // save the progress of a failed task for a rerun
+    saveManifestSegment();
 
+    if (progressRegistered) {
+      ProgressReporter.getInstance().unregister(taskIndex);
+      progressRegistered = false;
+    }
     closeCurrentFile().delete();
+    stagingFilePartitioner.ifPresent(StagingFilePartitioner::close);
+    stagingFileDeduplicator.ifPresent(StagingFileDeduplicator::close);
     if (connection != null) {
       connection.close();
       connection = null;
@@ -76,21 +281,28 @@ public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert
 
   @Override
   public void flush() throws IOException, SQLException {
-    File file = closeCurrentFile(); // flush buffered data in writer
-    if (batchRows > 0) {
-      String uploadFilePath =
-          DatabricksAPIClient.createFilePath(
-              catalogName,
-              schemaName,
-              volumeName,
-              DatabricksAPIClient.createRandomUnityCatalogObjectName());
-
-      UploadTask uploadTask = new UploadTask(uploadFilePath, batchRows, file);
-      Future<Void> uploadFuture = executorService.submit(uploadTask);
-      uploadAndCopyFutures.add(uploadFuture);
+    throwIfFailed();
+    if (isSmallLoad()) {
+      // Hold back the rows until finish() to insert them without staging,
+      // unless more rows come before it.
+      return;
+    }
+    if (batchRows > 0 && minStagingFileSize > 0) {
+      writer.flush();
+      if (currentFile.length() < minStagingFileSize) {
+        // Hold back a small batch to merge it with the next one.
+        // The rest of it is staged by finish().
+        return;
+      }
+    }
 
-      CopyTask copyTask = new CopyTask(uploadFuture, uploadFilePath);
-      uploadAndCopyFutures.add(executorService.submit(copyTask));
+    File file = closeCurrentFile(); // flush buffered data in writer
+    if (batchRows > 0 && stagingFileDeduplicator.isPresent()) {
+      // The rows are staged in finish() after the rows of all the batches are deduplicated.
+      stagingFileDeduplicator.get().add(file);
+      file.delete();
+    } else if (batchRows > 0) {
+      stageBatchFile(file, batchRows, Optional.of(formatChecksum(currentFileDigest)));
     }
     fileCount++;
     totalRows += batchRows;
@@ -99,51 +311,564 @@ public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert
     openNewFile();
   }
 
+  // writtenChecksum is the checksum computed by openWriter, if the file isn't rewritten since.
+  private void stageBatchFile(File file, int rows, Optional<String> writtenChecksum)
+      throws IOException {
+    if (stagingFilePartitioner.isPresent()) {
+      stagingFilePartitioner.get().split(file);
+      file.delete();
+      // A partition is staged when its file grows to the size of a batch.
+      for (StagingFilePartitioner.PartitionFile partitionFile :
+          stagingFilePartitioner.get().takeFiles(getBatchFileSize())) {
+        stagePartitionFile(partitionFile);
+      }
+      return;
+    }
+    String checksum;
+    if (stagingFileSorter.isPresent()) {
+      stagingFileSorter.get().sort(file);
+      checksum = computeChecksum(file);
+    } else if (writtenChecksum.isPresent()) {
+      checksum = writtenChecksum.get();
+    } else {
+      checksum = computeChecksum(file);
+    }
+    stageFile(file, rows, stagedFileSequence++, checksum);
+  }
+
+  private long getBatchFileSize() {
+    return adaptiveBatchSizer.isPresent() ? adaptiveBatchSizer.get().getBatchSize() : batchSize;
+  }
+
+  // Stages the rows deduplicated by StagingFileDeduplicator in files of the size of a batch.
+  private void stageDeduplicatedRows() throws IOException {
+    if (batchRows > 0) {
+      // held back by min_staging_file_size
+      File file = closeCurrentFile();
+      stagingFileDeduplicator.get().add(file);
+      file.delete();
+      fileCount++;
+      totalRows += batchRows;
+      batchRows = 0;
+      openNewFile();
+    }
+    DeduplicatedRowsOutput output = new DeduplicatedRowsOutput();
+    try {
+      long rows = stagingFileDeduplicator.get().finish(output);
+      output.stage();
+      logger.info(
+          String.format("Deduplicated %,d rows into %,d rows by merge keys", totalRows, rows));
+    } finally {
+      output.discard();
+    }
+  }
+
+  private class DeduplicatedRowsOutput implements StagingFileDeduplicator.Output {
+    private File file = null;
+    private BufferedWriter writer = null;
+    private int rows = 0;
+    private long chars = 0;
+
+    @Override
+    public void write(String line) throws IOException {
+      if (writer == null) {
+        file = File.createTempFile("embulk-output-databricks-", ".tsv.tmp");
+        writer = Files.newBufferedWriter(file.toPath(), FILE_CHARSET);
+      }
+      writer.write(line);
+      writer.write("\n");
+      rows++;
+      chars += line.length() + 1;
+      if (chars >= getBatchFileSize()) {
+        stage();
+      }
+    }
+
+    private void stage() throws IOException {
+      if (writer == null) {
+        return;
+      }
+      writer.close();
+      writer = null;
+      stageBatchFile(file, rows, Optional.empty());
+      file = null;
+      rows = 0;
+      chars = 0;
+    }
+
+    private void discard() throws IOException {
+      if (writer != null) {
+        writer.close();
+        writer = null;
+        file.delete();
+      }
+    }
+  }
+
+  private void stagePartitionFile(StagingFilePartitioner.PartitionFile partitionFile)
+      throws IOException {
+    File file = partitionFile.getFile();
+    logger.info(
+        String.format(
+            "Staging file of partition %s (%,d rows)",
+            partitionFile.getValues(), partitionFile.getRows()));
+    if (stagingFileSorter.isPresent()) {
+      stagingFileSorter.get().sort(file);
+    }
+    stageFile(
+        file,
+        partitionFile.getRows(),
+        stagedFileSequence++,
+        computeChecksum(file));
+  }
+
+  @Override
+  protected BufferedWriter openWriter(File newFile) throws IOException {
+    // The checksum is computed while the file is written so that it isn't read again.
+    currentFileDigest = createDigest();
+    OutputStream out =
+        new DigestOutputStream(Files.newOutputStream(newFile.toPath()), currentFileDigest);
+    return new BufferedWriter(new OutputStreamWriter(out, FILE_CHARSET), 128 * 1024);
+  }
+
+  private void stageFile(File file, int rows, long sequence, String checksum)
+      throws IOException {
+    StagingVolumeCreator.getInstance()
+        .createIfNotExists(databricksConfig, catalogName, schemaName, volumeName);
+    long fileBytes = file.length();
+    Optional<StagingManifest.Entry> stagedBefore = Optional.empty();
+    Optional<StagingManifest.Entry> manifestEntry = Optional.empty();
+    if (manifest.isPresent()) {
+      stagedBefore = manifest.get().find(sequence, checksum);
+      // Except in insert_direct mode, the rows are loaded into an intermediate table named for
+      // each run, so a file loaded by a previous run never matches and is loaded again.
+      if (stagedBefore.isPresent()
+          && stagedBefore.get().getStatus() != StagingManifest.Status.UPLOADED
+          && stagedBefore.get().getTable().equals(loadTableName)) {
+        logger.info(
+            "Skipping file {} already loaded into {}",
+            stagedBefore.get().getFilePath(),
+            loadTableName);
+        file.delete();
+        return;
+      }
+      if (stagedBefore.isPresent()
+          && stagedBefore.get().getStatus() == StagingManifest.Status.LOADED_AND_DELETED) {
+        stagedBefore = Optional.empty(); // need to upload it again
+      }
+      String filePath =
+          stagedBefore.isPresent()
+              ? stagedBefore.get().getFilePath()
+              : createUploadFilePath(sequence, checksum);
+      manifestEntry =
+          Optional.of(
+              new StagingManifest.Entry(
+                  sequence,
+                  filePath,
+                  rows,
+                  fileBytes,
+                  checksum,
+                  StagingManifest.Status.UPLOADED,
+                  ""));
+    }
+    String uploadFilePath =
+        manifestEntry.isPresent()
+            ? manifestEntry.get().getFilePath()
+            : createUploadFilePath(sequence, checksum);
+
+    progress.addStagedFile(fileBytes);
+    Future<Void> uploadFuture;
+    // With the manifest, a file not in it is uploaded again instead of being looked up.
+    if ((stagedBefore.isPresent()
+            || (deterministicFileNamePrefix.isPresent() && !manifest.isPresent()))
+        && isUploadedBefore(uploadFilePath, fileBytes)) {
+      logger.info("Skipping upload of file {} uploaded before ({})", uploadFilePath, checksum);
+      file.delete();
+      progress.startUpload();
+      progress.finishUpload(fileBytes, true);
+      metrics.recordUploadSkipped(fileBytes);
+      uploadFuture = CompletableFuture.completedFuture(null);
+    } else if (localStagingBudget.tryAcquire(fileBytes)) {
+      UploadTask uploadTask =
+          new UploadTask(uploadFilePath, rows, file, checksum, fileBytes, manifestEntry);
+      queuedUploadTasks.add(uploadTask);
+      uploadFuture = executorService.submit(uploadTask);
+      uploadAndCopyFutures.add(uploadFuture);
+    } else {
+      // The local disk budget is exhausted, so upload in this thread instead of queueing
+      // another file. This stops reading input until the staged file is deleted.
+      logger.info(
+          String.format(
+              "Local staging budget is exhausted (%,d of %,d bytes in use), uploading file %s synchronously",
+              localStagingBudget.getUsedBytes(),
+              localStagingBudget.getMaxBytes(),
+              uploadFilePath));
+      localStagingBudget.acquire(fileBytes);
+      uploadSynchronously(
+          new UploadTask(uploadFilePath, rows, file, checksum, fileBytes, manifestEntry));
+      uploadFuture = CompletableFuture.completedFuture(null);
+    }
+
+    CopyTask copyTask =
+        new CopyTask(uploadFuture, uploadFilePath, rows, fileBytes, manifestEntry);
+    uploadAndCopyFutures.add(executorService.submit(copyTask));
+    if (connection.isStatementApiEnabled()) {
+      // The COPY task returns as soon as the COPY is submitted, so wait for the statement too.
+      uploadAndCopyFutures.add(copyTask.statementCompletion);
+    }
+  }
+
   @Override
-  public void finish() throws SQLException {
+  public void finish() throws IOException, SQLException {
+    if (!finished && isSmallLoad()) {
+      insertSmallLoad();
+    }
+    if (stagingFileDeduplicator.isPresent() && !finished) {
+      stageDeduplicatedRows();
+    }
+    if (!stagingFileDeduplicator.isPresent() && batchRows > 0 && !finished) {
+      // The last batch held back by min_staging_file_size is staged even if it's small,
+      // so that the rows of this task are loaded by this task.
+      File file = closeCurrentFile();
+      stageBatchFile(file, batchRows, Optional.of(formatChecksum(currentFileDigest)));
+      fileCount++;
+      totalRows += batchRows;
+      batchRows = 0;
+    }
+    if (stagingFilePartitioner.isPresent() && !finished) {
+      for (StagingFilePartitioner.PartitionFile partitionFile :
+          stagingFilePartitioner.get().takeFiles(0)) {
+        stagePartitionFile(partitionFile);
+      }
+    }
+    finished = true;
+
     for (Future<Void> uploadAndCopyFuture : uploadAndCopyFutures) {
       try {
         uploadAndCopyFuture.get();
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
-      } catch (ExecutionException e) {
-        if (e.getCause() instanceof SQLException) {
-          throw (SQLException) e.getCause();
-        }
+      } catch (ExecutionException | CancellationException e) {
+        // The futures are cancelled by the first failure, so report it instead of the cancellation
+        throwIfFailed();
         throw new RuntimeException(e);
       }
     }
+    saveManifestSegment();
 
     logger.info("Loaded {} files. ({} rows)", fileCount, totalRows);
   }
 
+  // True while nothing is staged by this task and the rows so far are within small_load_max_rows
+  // and small_load_max_bytes.
+  private boolean isSmallLoad() throws IOException {
+    if (smallLoadMaxRows <= 0
+        || batchRows <= 0
+        || batchRows > smallLoadMaxRows
+        || stagedFileSequence > 0
+        || !uploadAndCopyFutures.isEmpty()
+        || stagingFileDeduplicator.map(x -> !x.isEmpty()).orElse(false)
+        || stagingFilePartitioner.map(x -> !x.isEmpty()).orElse(false)) {
+      return false;
+    }
+    writer.flush();
+    return currentFile.length() <= smallLoadMaxBytes;
+  }
+
+  // Inserts the rows of the current file with multi-row INSERTs over the connection of this task,
+  // which saves the upload and the COPY INTO of a staged file.
+  private void insertSmallLoad() throws IOException, SQLException {
+    List<List<String>> rows = StagingFileReader.readRows(currentFile);
+    if (stagingFileDeduplicator.isPresent()) {
+      rows = stagingFileDeduplicator.get().deduplicateRows(rows);
+    }
+    int columns = Math.max(1, targetTableSchema.getCount());
+    int rowsPerStatement = Math.max(1, MAX_INSERT_PARAMETERS / columns);
+    long startTime = System.currentTimeMillis();
+    while (smallLoadInsertedRows < rows.size()) {
+      int end = Math.min(rows.size(), smallLoadInsertedRows + rowsPerStatement);
+      connection.runInsertValues(
+          tableIdentifier, targetTableSchema, rows.subList(smallLoadInsertedRows, end));
+      smallLoadInsertedRows = end;
+    }
+    double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+    logger.info(
+        String.format("Inserted %,d rows without staging (%.2f seconds)", rows.size(), seconds));
+
+    closeCurrentFile().delete();
+    totalRows += batchRows;
+    batchRows = 0;
+    openNewFile();
+  }
+
+  private String createUploadFilePath(long sequence, String checksum) {
+    String fileName;
+    if (deterministicFileNamePrefix.isPresent()) {
+      // The same content staged by the same task gets the same name in a rerun, so that
+      // COPY INTO skips the file if it was already loaded into the table.
+      fileName =
+          createDeterministicFileName(
+              deterministicFileNamePrefix.get(), taskIndex, sequence, checksum);
+    } else {
+      fileName = DatabricksAPIClient.createRandomUnityCatalogObjectName();
+    }
+    return DatabricksAPIClient.createFilePath(catalogName, schemaName, volumeName, fileName);
+  }
+
+  static String createDeterministicFileName(
+      String prefix, int taskIndex, long sequence, String checksum) {
+    return String.format(
+        "%s_task%05d_%010d_%s", prefix, taskIndex, sequence, checksum.replace(":", "_"));
+  }
+
+  private String createManifestSegmentPath(int segment) {
+    return DatabricksAPIClient.createFilePath(
+        catalogName,
+        schemaName,
+        volumeName,
+        String.format("manifest_task_%05d_%06d.tsv", taskIndex, segment));
+  }
+
+  // Reads the segments in order until one doesn't exist.
+  private StagingManifest loadManifest() {
+    StagingManifest loaded = new StagingManifest();
+    while (true) {
+      String path = createManifestSegmentPath(manifestSegmentCount);
+      try {
+        Optional<InputStream> content = manifestApiClient.downloadFileIfExists(path);
+        if (!content.isPresent()) {
+          break;
+        }
+        try (BufferedReader reader =
+            new BufferedReader(new InputStreamReader(content.get(), StandardCharsets.UTF_8))) {
+          loaded.putAll(StagingManifest.parse(reader.lines().collect(Collectors.joining("\n"))));
+        }
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Ignoring staging manifest {}: {}", path, e.toString());
+        return new StagingManifest();
+      }
+      manifestSegmentCount++;
+    }
+    if (manifestSegmentCount > 0) {
+      logger.info(
+          "Resuming from staging manifest of task {} ({} files)",
+          taskIndex,
+          loaded.getEntries().size());
+    }
+    return loaded;
+  }
+
+  private void saveManifestEntry(StagingManifest.Entry entry) {
+    boolean full;
+    synchronized (unsavedManifestEntries) {
+      manifest.get().put(entry);
+      unsavedManifestEntries.add(entry);
+      full = unsavedManifestEntries.size() >= MANIFEST_SEGMENT_ENTRIES;
+    }
+    if (full) {
+      saveManifestSegment();
+    }
+  }
+
+  // The segments are saved one at a time, so that a failed one is retried with the same number
+  // and the numbers have no gap.
+  private void saveManifestSegment() {
+    if (!manifest.isPresent()) {
+      return;
+    }
+    synchronized (manifestSaveLock) {
+      List<StagingManifest.Entry> entries;
+      synchronized (unsavedManifestEntries) {
+        if (unsavedManifestEntries.isEmpty()) {
+          return;
+        }
+        entries = new ArrayList<>(unsavedManifestEntries);
+        unsavedManifestEntries.clear();
+      }
+      String path = createManifestSegmentPath(manifestSegmentCount);
+      byte[] content = StagingManifest.serialize(entries).getBytes(StandardCharsets.UTF_8);
+      try {
+        manifestApiClient.uploadFile(path, new ByteArrayInputStream(content), true);
+        manifestSegmentCount++;
+      } catch (RuntimeException e) {
+        // the manifest is only used to resume, so this doesn't fail the load
+        logger.warn("Failed to save staging manifest {}: {}", path, e.toString());
+        synchronized (unsavedManifestEntries) {
+          unsavedManifestEntries.addAll(0, entries);
+        }
+      }
+    }
+  }
+
+  // The Files API doesn't return the checksum of a file, so the size is compared instead.
+  // The checksum is compared through the manifest or the content-addressed file name.
+  private boolean isUploadedBefore(String filePath, long fileBytes) {
+    try {
+      Optional<Long> remoteBytes =
+          new DatabricksAPIClient(databricksConfig).fetchFileSizeIfExists(filePath);
+      return remoteBytes.isPresent() && remoteBytes.get() == fileBytes;
+    } catch (RuntimeException e) {
+      logger.warn("Failed to get metadata of file {}: {}", filePath, e.toString());
+      return false;
+    }
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String formatChecksum(MessageDigest digest) {
+    StringBuilder sb = new StringBuilder("md5:");
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  // Used for the files rewritten after openWriter, which are sorted or partitioned.
+  private static String computeChecksum(File file) throws IOException {
+    MessageDigest digest = createDigest();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, n);
+      }
+    }
+    return formatChecksum(digest);
+  }
+
+  private void uploadSynchronously(UploadTask uploadTask) throws IOException {
+    try {
+      uploadTask.call();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Stops the other uploads and COPYs as soon as one of them fails,
+  // so that they don't keep the warehouse busy until all of them are finished.
+  private void cancelOnFailure(Exception cause) {
+    if (!firstFailure.compareAndSet(null, cause)) {
+      return;
+    }
+    logger.warn(
+        "Cancelling outstanding uploads and COPYs because of an error: {}", cause.toString());
+    for (Future<Void> uploadAndCopyFuture : uploadAndCopyFutures) {
+      uploadAndCopyFuture.cancel(true);
+    }
+    discardUnstartedUploads();
+    for (DatabricksOutputConnection con : runningCopyConnections) {
+      try {
+        con.cancelRunningStatement();
+      } catch (SQLException e) {
+        logger.warn("Failed to cancel COPY: {}", e.toString());
+      }
+    }
+    for (Future<Void> statement : runningCopyStatements) {
+      statement.cancel(true);
+    }
+  }
+
+  // A task cancelled before it ran doesn't run its finally block, so its file and budget are
+  // released here. The uploads running now release them by themselves.
+  private void discardUnstartedUploads() {
+    for (UploadTask uploadTask : queuedUploadTasks) {
+      uploadTask.discardUnlessStarted();
+    }
+  }
+
+  private void throwIfFailed() throws SQLException {
+    Exception cause = firstFailure.get();
+    if (cause == null) {
+      return;
+    }
+    if (cause instanceof SQLException) {
+      throw (SQLException) cause;
+    }
+    throw new RuntimeException(cause);
+  }
+
   private class UploadTask implements Callable<Void> {
     private final String filePath;
     private final int batchRows;
     private final File file;
+    private final String checksum;
+    private final long fileBytes;
+    private final long reservedBytes;
+    private final Optional<StagingManifest.Entry> manifestEntry;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean discarded = new AtomicBoolean(false);
 
-    public UploadTask(String filePath, int batchRows, File file) {
+    public UploadTask(
+        String filePath,
+        int batchRows,
+        File file,
+        String checksum,
+        long reservedBytes,
+        Optional<StagingManifest.Entry> manifestEntry) {
       this.filePath = filePath;
       this.batchRows = batchRows;
       this.file = file;
+      this.checksum = checksum;
+      this.fileBytes = file.length();
+      this.reservedBytes = reservedBytes;
+      this.manifestEntry = manifestEntry;
+    }
+
+    // Deletes the file and releases the budget. This may be called more than once.
+    private void discard() {
+      if (!discarded.compareAndSet(false, true)) {
+        return;
+      }
+      file.delete();
+      localStagingBudget.release(reservedBytes);
+      queuedUploadTasks.remove(this);
+    }
+
+    private void discardUnlessStarted() {
+      if (started.compareAndSet(false, true)) {
+        discard();
+      }
     }
 
     @Override
     public Void call() throws Exception {
+      if (!started.compareAndSet(false, true)) {
+        // discarded before it started
+        throw new CancellationException();
+      }
       // TODO retry
       logger.info(
           String.format(
-              "Uploading file %s to managed volume (%,d bytes %,d rows)",
-              filePath, file.length(), batchRows));
+              "Uploading file %s to managed volume (%,d bytes %,d rows %s)",
+              filePath, fileBytes, batchRows, checksum));
+      progress.startUpload();
+      boolean succeeded = false;
+      long startTime = System.currentTimeMillis();
       try {
-        long startTime = System.currentTimeMillis();
         DatabricksAPIClient apiClient = new DatabricksAPIClient(databricksConfig);
-        apiClient.uploadFile(filePath, Files.newInputStream(file.toPath()));
+        // overwrite a partially uploaded file with the same name in a rerun
+        apiClient.uploadFile(filePath, Files.newInputStream(file.toPath()), true);
         double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        adaptiveBatchSizer.ifPresent(x -> x.recordUpload(fileBytes, seconds));
 
         logger.info(String.format("Uploaded file %s (%.2f seconds)", filePath, seconds));
+        manifestEntry.ifPresent(DatabricksCopyBatchInsert.this::saveManifestEntry);
+        succeeded = true;
+      } catch (Exception e) {
+        cancelOnFailure(e);
+        throw e;
       } finally {
-        file.delete();
+        discard();
+        progress.finishUpload(fileBytes, succeeded);
+        metrics.recordUpload(fileBytes, System.currentTimeMillis() - startTime, succeeded);
       }
       return null;
     }
@@ -152,10 +877,23 @@ public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert
   private class CopyTask implements Callable<Void> {
     private final Future<Void> uploadFuture;
     private final String filePath;
+    private final int rows;
+    private final long fileBytes;
+    private final Optional<StagingManifest.Entry> manifestEntry;
+    // Completed when the COPY submitted through the SQL Statement Execution API finishes.
+    private final CompletableFuture<Void> statementCompletion = new CompletableFuture<>();
 
-    private CopyTask(Future<Void> uploadFuture, String filePath) {
+    private CopyTask(
+        Future<Void> uploadFuture,
+        String filePath,
+        int rows,
+        long fileBytes,
+        Optional<StagingManifest.Entry> manifestEntry) {
       this.uploadFuture = uploadFuture;
       this.filePath = filePath;
+      this.rows = rows;
+      this.fileBytes = fileBytes;
+      this.manifestEntry = manifestEntry;
     }
 
     @Override
@@ -163,23 +901,95 @@ public class DatabricksCopyBatchInsert extends AbstractPostgreSQLCopyBatchInsert
       try {
         uploadFuture.get();
         logger.info("Running COPY from file {}", filePath);
+        if (connection.isStatementApiEnabled()) {
+          submitCopy();
+          return null;
+        }
         try (DatabricksOutputConnection con =
             (DatabricksOutputConnection) connector.connect(true)) {
+          // cancelOnFailure sets firstFailure before it cancels the registered connections,
+          // so a failure is either seen here or makes runCopy refuse to start the COPY.
+          runningCopyConnections.add(con);
+          if (firstFailure.get() != null) {
+            throw new CancellationException();
+          }
           long startTime = System.currentTimeMillis();
-          con.runCopy(tableIdentifier, filePath, targetTableSchema);
-          double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
-          logger.info(String.format("Loaded file %s (%.2f seconds for COPY)", filePath, seconds));
-          if (deleteStage) {
-            new DatabricksAPIClient(databricksConfig).deleteFile(filePath);
+          progress.startCopy();
+          boolean succeeded = false;
+          try {
+            con.runCopy(tableIdentifier, filePath, targetTableSchema);
+            succeeded = true;
+          } finally {
+            runningCopyConnections.remove(con);
+            progress.finishCopy(rows, succeeded);
+            metrics.recordCopy(System.currentTimeMillis() - startTime, succeeded);
           }
+          onCopySucceeded(startTime);
         }
       } catch (Exception e) {
-        if (deleteStage && deleteStageOnError) {
-          new DatabricksAPIClient(databricksConfig).deleteFile(filePath);
-        }
+        onCopyFailed(e);
         throw new RuntimeException(e);
       }
       return null;
     }
+
+    // The thread is released while the COPY runs. The rest is done in the completion executor of
+    // AsyncStatementExecutor, not on its poller, which would stall every statement meanwhile, nor
+    // in the executor of this task, which may already be shut down by close() then.
+    private void submitCopy() {
+      if (firstFailure.get() != null) {
+        throw new CancellationException();
+      }
+      long startTime = System.currentTimeMillis();
+      progress.startCopy();
+      CompletableFuture<Void> statement;
+      try {
+        statement = connection.submitCopy(tableIdentifier, filePath, targetTableSchema);
+      } catch (RuntimeException e) {
+        progress.finishCopy(rows, false);
+        metrics.recordCopy(System.currentTimeMillis() - startTime, false);
+        throw e;
+      }
+      runningCopyStatements.add(statement);
+      statement.whenCompleteAsync(
+          (result, error) -> {
+            runningCopyStatements.remove(statement);
+            progress.finishCopy(rows, error == null);
+            metrics.recordCopy(System.currentTimeMillis() - startTime, error == null);
+            try {
+              if (error != null) {
+                throw error;
+              }
+              onCopySucceeded(startTime);
+              statementCompletion.complete(null);
+            } catch (Throwable e) {
+              Exception cause = e instanceof Exception ? (Exception) e : new RuntimeException(e);
+              onCopyFailed(cause);
+              statementCompletion.completeExceptionally(cause);
+            }
+          },
+          AsyncStatementExecutor.getInstance().getCompletionExecutor());
+    }
+
+    private void onCopySucceeded(long startTime) {
+      double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+      adaptiveBatchSizer.ifPresent(x -> x.recordCopy(fileBytes, seconds));
+      logger.info(String.format("Loaded file %s (%.2f seconds for COPY)", filePath, seconds));
+      if (deleteStage) {
+        new DatabricksAPIClient(databricksConfig).deleteFile(filePath);
+      }
+      if (manifestEntry.isPresent()) {
+        StagingManifest.Status status =
+            deleteStage ? StagingManifest.Status.LOADED_AND_DELETED : StagingManifest.Status.LOADED;
+        saveManifestEntry(manifestEntry.get().withStatus(status, loadTableName));
+      }
+    }
+
+    private void onCopyFailed(Exception e) {
+      cancelOnFailure(e);
+      if (deleteStage && deleteStageOnError) {
+        new DatabricksAPIClient(databricksConfig).deleteFile(filePath);
+      }
+    }
   }
 }
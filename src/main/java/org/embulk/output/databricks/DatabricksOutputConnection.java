@@ -1,17 +1,47 @@
 package org.embulk.output.databricks;
 
+import com.databricks.sdk.core.DatabricksConfig;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import org.embulk.output.jdbc.*;
 
 public class DatabricksOutputConnection extends JdbcOutputConnection {
   final String catalogName;
+  // guarded by this, so that a COPY starting while it's cancelled doesn't run
+  private Statement runningStatement = null;
+  private boolean statementCancelled = false;
+  private final Optional<DatabricksStatementClient> statementClient;
+  private ParallelTableOperations deferredTableOperations = null;
+  private Map<String, List<String>> mergeKeyRanges = Collections.emptyMap();
+  private boolean skipUnchangedRows = false;
+  private int mergeChunks = 1;
+  private MergeProgress mergeProgress = new MergeProgress();
+  private Map<String, String> tableProperties = Collections.emptyMap();
+  private Map<String, String> intermediateTableProperties = Collections.emptyMap();
+  private List<String> clusterBy = Collections.emptyList();
+  private List<String> partitionedBy = Collections.emptyList();
+  private boolean layoutIntermediateTables = false;
+  private Optional<DatabricksConfig> accessTokenSource = Optional.empty();
+  private String accessToken = null;
 
   public DatabricksOutputConnection(Connection connection, String catalogName, String schemaName)
       throws SQLException {
+    this(connection, catalogName, schemaName, Optional.empty());
+  }
+
+  // If statementClient is present, COPY INTO, MERGE and the aggregate statements are run through
+  // the SQL Statement Execution API instead of this JDBC connection.
+  public DatabricksOutputConnection(
+      Connection connection,
+      String catalogName,
+      String schemaName,
+      Optional<DatabricksStatementClient> statementClient)
+      throws SQLException {
     super(connection, schemaName);
     this.catalogName = catalogName;
+    this.statementClient = statementClient;
     useCatalog(catalogName);
     useSchema(schemaName);
   }
@@ -42,7 +72,14 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
   // This is almost copy from JdbcOutputConnection excepting validation of table exists in current
   // schema
   public boolean tableExists(TableIdentifier table) throws SQLException {
-    return super.tableExists(currentConnectionTableIdentifier(table));
+    TableIdentifier identifier = currentConnectionTableIdentifier(table);
+    return TableMetadataCache.getInstance()
+        .tableExists(
+            identifier,
+            () -> {
+              refreshAccessToken();
+              return super.tableExists(identifier);
+            });
   }
 
   public TableIdentifier currentConnectionTableIdentifier(TableIdentifier tableIdentifier) {
@@ -86,11 +123,348 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
       throws SQLException {
     try (Statement stmt = connection.createStatement()) {
       String sql = buildCopySQL(table, filePath, jdbcSchema);
-      executeUpdate(stmt, sql);
+      synchronized (this) {
+        if (statementCancelled) {
+          throw new SQLException("COPY was cancelled before it started");
+        }
+        runningStatement = stmt;
+      }
+      try {
+        executeUpdate(stmt, sql);
+      } finally {
+        synchronized (this) {
+          runningStatement = null;
+        }
+      }
+      commitIfNecessary(connection);
+    }
+  }
+
+  // Inserts the rows read back by StagingFileReader with one multi-row INSERT, instead of
+  // staging them for COPY INTO. The values are cast in the same way as buildCopySQL.
+  public void runInsertValues(TableIdentifier table, JdbcSchema jdbcSchema, List<List<String>> rows)
+      throws SQLException {
+    String sql = buildInsertValuesSQL(table, jdbcSchema, rows.size());
+    try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+      int index = 1;
+      for (List<String> row : rows) {
+        for (int i = 0; i < jdbcSchema.getCount(); i++) {
+          if (jdbcSchema.getColumn(i).isSkipColumn()) {
+            continue;
+          }
+          String value = i < row.size() ? row.get(i) : null;
+          if (value == null) {
+            stmt.setNull(index++, Types.VARCHAR);
+          } else {
+            stmt.setString(index++, value);
+          }
+        }
+      }
+      logger.info(String.format("SQL: INSERT INTO ... VALUES (%,d rows)", rows.size()));
+      long startTime = System.currentTimeMillis();
+      refreshAccessToken();
+      stmt.executeUpdate();
+      double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+      logger.info(String.format("> %.2f seconds", seconds));
       commitIfNecessary(connection);
     }
   }
 
+  protected String buildInsertValuesSQL(TableIdentifier table, JdbcSchema jdbcSchema, int rows) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("INSERT INTO ");
+    quoteTableIdentifier(sb, table);
+    StringBuilder columnNames = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    for (JdbcColumn column : jdbcSchema.getColumns()) {
+      if (column.isSkipColumn()) {
+        continue;
+      }
+      if (columnNames.length() != 0) {
+        columnNames.append(", ");
+        values.append(", ");
+      }
+      columnNames.append(quoteIdentifierString(column.getName()));
+      values.append(String.format("CAST(? AS %s)", getCreateTableTypeName(column)));
+    }
+    sb.append(" (").append(columnNames).append(") VALUES ");
+    for (int i = 0; i < rows; i++) {
+      if (i != 0) {
+        sb.append(", ");
+      }
+      sb.append("(").append(values).append(")");
+    }
+    return sb.toString();
+  }
+
+  // The ranges of MergeKeyRanges are added to the ON clause of MERGE, so that Delta can skip the
+  // files of the target table out of the ranges.
+  public void setMergeKeyRanges(Map<String, List<String>> mergeKeyRanges) {
+    this.mergeKeyRanges = mergeKeyRanges;
+  }
+
+  // If true and merge_rule isn't set, MERGE doesn't update the rows whose values are unchanged,
+  // so that Delta doesn't rewrite the files of them.
+  public void setSkipUnchangedRows(boolean skipUnchangedRows) {
+    this.skipUnchangedRows = skipUnchangedRows;
+  }
+
+  // If mergeChunks is greater than 1, the source of MERGE is split into ranges of the first merge
+  // key, and one MERGE is run for each range. The progress is recorded to mergeProgress, which is
+  // kept across the retries of the commit.
+  public void setMergeChunks(int mergeChunks, MergeProgress mergeProgress) {
+    this.mergeChunks = mergeChunks;
+    this.mergeProgress = mergeProgress;
+  }
+
+  // The properties are set to the tables created by createTableIfNotExists, which creates the
+  // target table, and by createTable, which creates the intermediate tables.
+  public void setTableProperties(
+      Map<String, String> tableProperties, Map<String, String> intermediateTableProperties) {
+    this.tableProperties = tableProperties;
+    this.intermediateTableProperties = intermediateTableProperties;
+  }
+
+  // The layout is set to the target table created by createTableIfNotExists. If
+  // layoutIntermediateTables is true, it's set to the intermediate tables too, as one of them
+  // replaces the target table in replace mode.
+  public void setTableLayout(
+      List<String> clusterBy, List<String> partitionedBy, boolean layoutIntermediateTables) {
+    this.clusterBy = clusterBy;
+    this.partitionedBy = partitionedBy;
+    this.layoutIntermediateTables = layoutIntermediateTables;
+  }
+
+  // With Auth_Flow=0, the driver keeps using the token given at connect even after it expires. If
+  // this is set, the current token of the config is pushed to the connection before each
+  // statement when it has been rotated.
+  public void setAccessTokenSource(DatabricksConfig accessTokenSource, String accessToken) {
+    this.accessTokenSource = Optional.of(accessTokenSource);
+    this.accessToken = accessToken;
+  }
+
+  private void refreshAccessToken() throws SQLException {
+    if (!accessTokenSource.isPresent()) {
+      return;
+    }
+    String token = DatabricksAPIClient.fetchAccessToken(accessTokenSource.get());
+    if (!token.equals(accessToken)) {
+      logger.info("Setting the rotated OAuth access token to the connection");
+      connection.setClientInfo("Auth_AccessToken", token);
+      accessToken = token;
+    }
+  }
+
+  @Override
+  protected int executeUpdate(Statement stmt, String sql) throws SQLException {
+    refreshAccessToken();
+    return super.executeUpdate(stmt, sql);
+  }
+
+  // While this is set, createTable is run by the given operations in parallel instead of
+  // this connection. The caller waits for them with ParallelTableOperations.await().
+  public void setDeferredTableOperations(ParallelTableOperations deferredTableOperations) {
+    this.deferredTableOperations = deferredTableOperations;
+  }
+
+  @Override
+  public void createTable(
+      TableIdentifier table,
+      JdbcSchema schema,
+      Optional<String> tableConstraint,
+      Optional<String> tableOption)
+      throws SQLException {
+    if (deferredTableOperations != null) {
+      deferredTableOperations.submit(
+          con -> con.createTable(table, schema, tableConstraint, tableOption));
+      return;
+    }
+    invalidateTableMetadata(table);
+    super.createTable(table, schema, tableConstraint, tableOption);
+  }
+
+  @Override
+  public void createTableIfNotExists(
+      TableIdentifier table,
+      JdbcSchema schema,
+      Optional<String> tableConstraint,
+      Optional<String> tableOption)
+      throws SQLException {
+    invalidateTableMetadata(table);
+    super.createTableIfNotExists(table, schema, tableConstraint, tableOption);
+  }
+
+  @Override
+  protected String buildCreateTableSql(
+      TableIdentifier table,
+      JdbcSchema schema,
+      Optional<String> tableConstraint,
+      Optional<String> tableOption) {
+    return super.buildCreateTableSql(table, schema, tableConstraint, tableOption)
+        + (layoutIntermediateTables ? buildTableLayoutClause() : "")
+        + buildTablePropertiesClause(intermediateTableProperties);
+  }
+
+  @Override
+  protected String buildCreateTableIfNotExistsSql(
+      TableIdentifier table,
+      JdbcSchema schema,
+      Optional<String> tableConstraint,
+      Optional<String> tableOption) {
+    return super.buildCreateTableIfNotExistsSql(table, schema, tableConstraint, tableOption)
+        + buildTableLayoutClause()
+        + buildTablePropertiesClause(tableProperties);
+  }
+
+  // https://docs.databricks.com/en/sql/language-manual/sql-ref-syntax-ddl-cluster-by.html
+  // https://docs.databricks.com/en/sql/language-manual/sql-ref-partition.html#partitioned-by
+  protected String buildTableLayoutClause() {
+    if (!clusterBy.isEmpty()) {
+      return " CLUSTER BY (" + buildColumnList(clusterBy) + ")";
+    }
+    if (!partitionedBy.isEmpty()) {
+      return " PARTITIONED BY (" + buildColumnList(partitionedBy) + ")";
+    }
+    return "";
+  }
+
+  private String buildColumnList(List<String> columnNames) {
+    return columnNames.stream().map(this::quoteIdentifierString).collect(Collectors.joining(", "));
+  }
+
+  // https://docs.databricks.com/en/sql/language-manual/sql-ref-syntax-ddl-tblproperties.html
+  protected String buildTablePropertiesClause(Map<String, String> properties) {
+    if (properties.isEmpty()) {
+      return "";
+    }
+    return properties.entrySet().stream()
+        .map(e -> quoteStringLiteral(e.getKey()) + " = " + quoteStringLiteral(e.getValue()))
+        .collect(Collectors.joining(", ", " TBLPROPERTIES (", ")"));
+  }
+
+  @Override
+  public void dropTableIfExists(TableIdentifier table) throws SQLException {
+    invalidateTableMetadata(table);
+    super.dropTableIfExists(table);
+  }
+
+  @Override
+  public void replaceTable(
+      TableIdentifier fromTable,
+      JdbcSchema schema,
+      TableIdentifier toTable,
+      Optional<String> postSql)
+      throws SQLException {
+    invalidateTableMetadata(fromTable);
+    invalidateTableMetadata(toTable);
+    super.replaceTable(fromTable, schema, toTable, postSql);
+  }
+
+  private void invalidateTableMetadata(TableIdentifier table) {
+    TableMetadataCache.getInstance().invalidate(currentConnectionTableIdentifier(table));
+  }
+
+  public boolean isStatementApiEnabled() {
+    return statementClient.isPresent();
+  }
+
+  // Submits COPY INTO through the SQL Statement Execution API without waiting for it.
+  // Cancelling the returned future cancels the COPY.
+  public CompletableFuture<Void> submitCopy(
+      TableIdentifier table, String filePath, JdbcSchema jdbcSchema) {
+    String sql = buildCopySQL(table, filePath, jdbcSchema);
+    logger.info("SQL: " + sql);
+    return AsyncStatementExecutor.getInstance().submit(statementClient.get(), sql);
+  }
+
+  // Runs OPTIMIZE on the table, limited to the given ranges of its partition columns.
+  public void runOptimize(
+      TableIdentifier table, Map<String, List<String>> partitionRanges, List<String> zorderBy)
+      throws SQLException {
+    try (Statement stmt = connection.createStatement()) {
+      executeLoadStatement(stmt, buildOptimizeSQL(table, partitionRanges, zorderBy));
+    }
+  }
+
+  // Submits OPTIMIZE through the SQL Statement Execution API without waiting for it.
+  // The statement keeps running on the warehouse even if this JVM exits.
+  public CompletableFuture<Void> submitOptimize(
+      TableIdentifier table, Map<String, List<String>> partitionRanges, List<String> zorderBy) {
+    String sql = buildOptimizeSQL(table, partitionRanges, zorderBy);
+    logger.info("SQL: " + sql);
+    return AsyncStatementExecutor.getInstance().submit(statementClient.get(), sql);
+  }
+
+  // https://docs.databricks.com/en/sql/language-manual/delta-optimize.html
+  protected String buildOptimizeSQL(
+      TableIdentifier table, Map<String, List<String>> partitionRanges, List<String> zorderBy) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("OPTIMIZE ");
+    quoteTableIdentifier(sb, table);
+    if (!partitionRanges.isEmpty()) {
+      sb.append(" WHERE ");
+      sb.append(
+          partitionRanges.entrySet().stream()
+              .map(e -> buildRangeCondition(e.getKey(), e.getValue()))
+              .collect(Collectors.joining(" AND ")));
+    }
+    if (!zorderBy.isEmpty()) {
+      sb.append(" ZORDER BY (");
+      sb.append(buildColumnList(zorderBy));
+      sb.append(")");
+    }
+    return sb.toString();
+  }
+
+  // The range is [type, min, max] of MergeKeyRanges.
+  private String buildRangeCondition(String columnName, List<String> range) {
+    String type = range.get(0);
+    return quoteIdentifierString(columnName)
+        + " BETWEEN "
+        + buildRangeLiteral(type, range.get(1))
+        + " AND "
+        + buildRangeLiteral(type, range.get(2));
+  }
+
+  // https://docs.databricks.com/en/sql/language-manual/sql-ref-literals.html
+  private static String buildRangeLiteral(String type, String value) {
+    switch (type) {
+      case MergeKeyRanges.NUMBER:
+        return value;
+      case MergeKeyRanges.DATE:
+        return "DATE " + quoteStringLiteral(value);
+      case MergeKeyRanges.TIMESTAMP:
+        return "TIMESTAMP " + quoteStringLiteral(value);
+      default:
+        return quoteStringLiteral(value);
+    }
+  }
+
+  protected void executeLoadStatement(Statement stmt, String sql) throws SQLException {
+    if (!statementClient.isPresent()) {
+      executeUpdate(stmt, sql);
+      return;
+    }
+    logger.info("SQL: " + sql);
+    long startTime = System.currentTimeMillis();
+    AsyncStatementExecutor.getInstance().execute(statementClient.get(), sql);
+    double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+    logger.info(String.format("> %.2f seconds", seconds));
+  }
+
+  // This may be called from another thread to abort the COPY running in runCopy.
+  // A COPY that has not started yet is not run anymore.
+  public void cancelRunningStatement() throws SQLException {
+    Statement stmt;
+    synchronized (this) {
+      statementCancelled = true;
+      stmt = runningStatement;
+    }
+    if (stmt != null) {
+      stmt.cancel();
+    }
+  }
+
   // https://docs.databricks.com/en/ingestion/copy-into/examples.html#load-csv-files-with-copy-into
   // https://docs.databricks.com/en/sql/language-manual/delta-copy-into.html
   protected String buildCopySQL(TableIdentifier table, String filePath, JdbcSchema jdbcSchema) {
@@ -155,13 +529,18 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
       TableIdentifier aggregateToTable = fromTables.get(0);
       List<TableIdentifier> aggregateFromTables =
           fromTables.stream().skip(1).collect(Collectors.toList());
-      if (!aggregateFromTables.isEmpty()) {
+      if (!aggregateFromTables.isEmpty() && !mergeProgress.isAggregated()) {
         String aggregateSQL = buildAggregateSQL(aggregateFromTables, aggregateToTable);
-        executeUpdate(stmt, aggregateSQL);
+        executeLoadStatement(stmt, aggregateSQL);
+        mergeProgress.setAggregated();
       }
 
-      String sql = buildCollectMergeSql(aggregateToTable, schema, toTable, mergeConfig);
-      executeUpdate(stmt, sql);
+      if (mergeChunks <= 1) {
+        String sql = buildCollectMergeSql(aggregateToTable, schema, toTable, mergeConfig);
+        executeLoadStatement(stmt, sql);
+      } else {
+        mergeInChunks(stmt, aggregateToTable, schema, toTable, mergeConfig);
+      }
 
       if (postSql.isPresent()) {
         execute(stmt, postSql.get());
@@ -175,6 +554,136 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
     }
   }
 
+  // This is almost a copy of JdbcOutputConnection except for running the aggregate statement
+  // through executeLoadStatement.
+  @Override
+  protected void collectInsert(
+      List<TableIdentifier> fromTables,
+      JdbcSchema schema,
+      TableIdentifier toTable,
+      boolean truncateDestinationFirst,
+      Optional<String> preSql,
+      Optional<String> postSql)
+      throws SQLException {
+    if (fromTables.isEmpty()) {
+      return;
+    }
+
+    Statement stmt = connection.createStatement();
+    try {
+      if (truncateDestinationFirst) {
+        String sql = buildTruncateSql(toTable);
+        executeUpdate(stmt, sql);
+      }
+
+      if (preSql.isPresent()) {
+        execute(stmt, preSql.get());
+      }
+
+      String sql = buildCollectInsertSql(fromTables, schema, toTable);
+      executeLoadStatement(stmt, sql);
+
+      if (postSql.isPresent()) {
+        execute(stmt, postSql.get());
+      }
+
+      commitIfNecessary(connection);
+    } catch (SQLException ex) {
+      throw safeRollback(connection, ex);
+    } finally {
+      stmt.close();
+    }
+  }
+
+  // Each chunk is a range of the first merge key, bounded by its quantiles in the aggregated
+  // table. The range is added to both the source and the ON clause, so that the chunks read and
+  // rewrite disjoint files of the target table when it's clustered or partitioned by the key.
+  private void mergeInChunks(
+      Statement stmt,
+      TableIdentifier aggregateToTable,
+      JdbcSchema schema,
+      TableIdentifier toTable,
+      MergeConfig mergeConfig)
+      throws SQLException {
+    String key = mergeConfig.getMergeKeys().get(0);
+    String type = null;
+    for (int i = 0; i < schema.getCount(); i++) {
+      if (schema.getColumnName(i).equalsIgnoreCase(key)) {
+        type = MergeKeyRanges.toRangeType(schema.getColumn(i).getSqlType());
+      }
+    }
+    if (type == null || type.equals(MergeKeyRanges.STRING)) {
+      // approx_percentile doesn't accept strings
+      logger.warn(
+          "merge_chunks is ignored because the merge key {} is not a number, date or timestamp",
+          key);
+      executeLoadStatement(
+          stmt, buildCollectMergeSql(aggregateToTable, schema, toTable, mergeConfig));
+      return;
+    }
+    if (!mergeProgress.getChunkBounds().isPresent()) {
+      mergeProgress.setChunkBounds(fetchChunkBounds(stmt, aggregateToTable, key));
+    }
+    List<String> bounds = mergeProgress.getChunkBounds().get();
+    int chunks = bounds.size() + 1;
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      if (mergeProgress.isMerged(chunk)) {
+        logger.info("Skipping chunk {} of {} merged before", chunk + 1, chunks);
+        continue;
+      }
+      logger.info("Merging chunk {} of {}", chunk + 1, chunks);
+      Optional<String> lowerBound =
+          chunk == 0
+              ? Optional.empty()
+              : Optional.of(buildRangeLiteral(type, bounds.get(chunk - 1)));
+      Optional<String> upperBound =
+          chunk == chunks - 1
+              ? Optional.empty()
+              : Optional.of(buildRangeLiteral(type, bounds.get(chunk)));
+      String sql =
+          buildCollectMergeSql(
+              aggregateToTable, schema, toTable, mergeConfig, lowerBound, upperBound);
+      executeLoadStatement(stmt, sql);
+      mergeProgress.setMerged(chunk);
+    }
+  }
+
+  // Returns the distinct quantiles of the key that split the rows into mergeChunks ranges.
+  // Fewer are returned if the key is skewed.
+  private List<String> fetchChunkBounds(Statement stmt, TableIdentifier table, String key)
+      throws SQLException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("SELECT ");
+    for (int i = 1; i < mergeChunks; i++) {
+      if (i != 1) {
+        sb.append(", ");
+      }
+      sb.append("CAST(approx_percentile(");
+      sb.append(quoteIdentifierString(key));
+      sb.append(", ");
+      sb.append((double) i / mergeChunks);
+      sb.append(") AS STRING)");
+    }
+    sb.append(" FROM ");
+    quoteTableIdentifier(sb, table);
+    String sql = sb.toString();
+    logger.info("SQL: " + sql);
+    List<String> bounds = new ArrayList<>();
+    refreshAccessToken();
+    try (ResultSet rs = stmt.executeQuery(sql)) {
+      if (rs.next()) {
+        for (int i = 1; i < mergeChunks; i++) {
+          String bound = rs.getString(i);
+          // the quantiles are in ascending order, so the same values are next to each other
+          if (bound != null && (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound))) {
+            bounds.add(bound);
+          }
+        }
+      }
+    }
+    return bounds;
+  }
+
   // https://github.com/embulk/embulk-output-jdbc/blob/242db4daf397fb8bfd286f5e61f8da67b51d7b31/embulk-output-redshift/src/main/java/org/embulk/output/redshift/RedshiftOutputConnection.java
   // https://docs.databricks.com/en/sql/language-manual/delta-merge-into.html
   protected String buildCollectMergeSql(
@@ -183,12 +692,43 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
       TableIdentifier toTable,
       MergeConfig mergeConfig)
       throws SQLException {
+    return buildCollectMergeSql(
+        aggregateToTable, schema, toTable, mergeConfig, Optional.empty(), Optional.empty());
+  }
+
+  // If the bounds are present, only the rows whose first merge key is in [lowerBound, upperBound)
+  // are merged. The rows with a NULL key never match, and they are inserted by the first chunk.
+  protected String buildCollectMergeSql(
+      TableIdentifier aggregateToTable,
+      JdbcSchema schema,
+      TableIdentifier toTable,
+      MergeConfig mergeConfig,
+      Optional<String> lowerBound,
+      Optional<String> upperBound)
+      throws SQLException {
+    String chunkKey = quoteIdentifierString(mergeConfig.getMergeKeys().get(0));
     StringBuilder sb = new StringBuilder();
     sb.append("MERGE INTO ");
     quoteTableIdentifier(sb, toTable);
     sb.append(" T ");
     sb.append(" USING ");
-    quoteTableIdentifier(sb, aggregateToTable);
+    if (lowerBound.isPresent() || upperBound.isPresent()) {
+      sb.append("(SELECT * FROM ");
+      quoteTableIdentifier(sb, aggregateToTable);
+      sb.append(" WHERE ");
+      if (!lowerBound.isPresent()) {
+        sb.append("(");
+        sb.append(chunkKey);
+        sb.append(" IS NULL OR ");
+        sb.append(buildChunkCondition(chunkKey, lowerBound, upperBound));
+        sb.append(")");
+      } else {
+        sb.append(buildChunkCondition(chunkKey, lowerBound, upperBound));
+      }
+      sb.append(")");
+    } else {
+      quoteTableIdentifier(sb, aggregateToTable);
+    }
     sb.append(" S ");
     sb.append(" ON (");
     for (int i = 0; i < mergeConfig.getMergeKeys().size(); i++) {
@@ -201,9 +741,62 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
       sb.append(" = S.");
       sb.append(mergeKey);
     }
+    if (lowerBound.isPresent() || upperBound.isPresent()) {
+      sb.append(" AND ");
+      sb.append(buildChunkCondition("T." + chunkKey, lowerBound, upperBound));
+    }
+    for (String key : mergeConfig.getMergeKeys()) {
+      List<String> range = mergeKeyRanges.get(key);
+      if (range == null) {
+        continue;
+      }
+      sb.append(" AND T.");
+      sb.append(buildRangeCondition(key, range));
+    }
     sb.append(")");
-    sb.append(" WHEN MATCHED THEN ");
-    sb.append(" UPDATE SET ");
+    if (mergeConfig.getMergeRule().isPresent() || !skipUnchangedRows) {
+      sb.append(" WHEN MATCHED THEN ");
+      sb.append(" UPDATE SET ");
+      appendMergeUpdateSet(sb, schema, mergeConfig);
+    } else {
+      // A row whose columns other than the keys are all the same is not rewritten.
+      // If all the columns are keys, a matched row never changes.
+      List<String> valueColumns = new ArrayList<>();
+      for (int i = 0; i < schema.getCount(); i++) {
+        String column = schema.getColumnName(i);
+        if (mergeConfig.getMergeKeys().stream().noneMatch(column::equalsIgnoreCase)) {
+          valueColumns.add(quoteIdentifierString(column));
+        }
+      }
+      if (!valueColumns.isEmpty()) {
+        sb.append(" WHEN MATCHED AND NOT (");
+        sb.append(
+            valueColumns.stream()
+                .map(column -> "T." + column + " <=> S." + column)
+                .collect(Collectors.joining(" AND ")));
+        sb.append(") THEN ");
+        sb.append(" UPDATE SET ");
+        appendMergeUpdateSet(sb, schema, mergeConfig);
+      }
+    }
+    sb.append(" WHEN NOT MATCHED THEN");
+    sb.append(" INSERT (");
+    sb.append(buildColumns(schema, ""));
+    sb.append(") VALUES (");
+    sb.append(buildColumns(schema, "S."));
+    sb.append(");");
+    return sb.toString();
+  }
+
+  private static String buildChunkCondition(
+      String column, Optional<String> lowerBound, Optional<String> upperBound) {
+    List<String> conditions = new ArrayList<>();
+    lowerBound.ifPresent(bound -> conditions.add(column + " >= " + bound));
+    upperBound.ifPresent(bound -> conditions.add(column + " < " + bound));
+    return String.join(" AND ", conditions);
+  }
+
+  private void appendMergeUpdateSet(StringBuilder sb, JdbcSchema schema, MergeConfig mergeConfig) {
     if (mergeConfig.getMergeRule().isPresent()) {
       for (int i = 0; i < mergeConfig.getMergeRule().get().size(); i++) {
         if (i != 0) {
@@ -222,13 +815,6 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
         sb.append(column);
       }
     }
-    sb.append(" WHEN NOT MATCHED THEN");
-    sb.append(" INSERT (");
-    sb.append(buildColumns(schema, ""));
-    sb.append(") VALUES (");
-    sb.append(buildColumns(schema, "S."));
-    sb.append(");");
-    return sb.toString();
   }
 
   protected String buildAggregateSQL(List<TableIdentifier> fromTables, TableIdentifier toTable) {
@@ -261,6 +847,11 @@ public class DatabricksOutputConnection extends JdbcOutputConnection {
     }
   }
 
+  // https://docs.databricks.com/en/sql/language-manual/data-types/string-type.html
+  private static String quoteStringLiteral(String str) {
+    return "'" + str.replace("\\", "\\\\").replace("'", "\\'") + "'";
+  }
+
   private String buildColumns(JdbcSchema schema, String prefix) {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < schema.getCount(); i++) {
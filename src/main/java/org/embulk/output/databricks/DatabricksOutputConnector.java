@@ -1,8 +1,11 @@
 package org.embulk.output.databricks;
 
+import com.databricks.sdk.core.DatabricksConfig;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import org.embulk.output.jdbc.AbstractJdbcOutputConnector;
@@ -17,24 +20,69 @@ public class DatabricksOutputConnector extends AbstractJdbcOutputConnector {
 
   private final String schemaName;
 
+  private final Optional<DatabricksStatementClient> statementClient;
+
+  private final Optional<DatabricksConfig> accessTokenSource;
+
+  private final Map<String, String> tableProperties;
+
+  private final Map<String, String> intermediateTableProperties;
+
+  private final List<String> clusterBy;
+
+  private final List<String> partitionedBy;
+
+  private final boolean layoutIntermediateTables;
+
+  // If accessTokenSource is present, each connection is authenticated by the current OAuth token
+  // of the config instead of running the OAuth flow by itself. The token is refreshed on the
+  // connection when the config rotates it.
   public DatabricksOutputConnector(
       String url,
       Properties properties,
       Optional<TransactionIsolation> transactionIsolation,
       String catalogName,
-      String schemaName) {
+      String schemaName,
+      Optional<DatabricksStatementClient> statementClient,
+      Optional<DatabricksConfig> accessTokenSource,
+      Map<String, String> tableProperties,
+      Map<String, String> intermediateTableProperties,
+      List<String> clusterBy,
+      List<String> partitionedBy,
+      boolean layoutIntermediateTables) {
     super(transactionIsolation);
     this.url = url;
     this.properties = properties;
     this.catalogName = catalogName;
     this.schemaName = schemaName;
+    this.statementClient = statementClient;
+    this.accessTokenSource = accessTokenSource;
+    this.tableProperties = tableProperties;
+    this.intermediateTableProperties = intermediateTableProperties;
+    this.clusterBy = clusterBy;
+    this.partitionedBy = partitionedBy;
+    this.layoutIntermediateTables = layoutIntermediateTables;
   }
 
   @Override
   protected JdbcOutputConnection connect() throws SQLException {
-    Connection c = DriverManager.getConnection(url, properties);
+    Properties connectProperties = properties;
+    String accessToken = null;
+    if (accessTokenSource.isPresent()) {
+      accessToken = DatabricksAPIClient.fetchAccessToken(accessTokenSource.get());
+      connectProperties = new Properties();
+      connectProperties.putAll(properties);
+      connectProperties.put("Auth_AccessToken", accessToken);
+    }
+    Connection c = DriverManager.getConnection(url, connectProperties);
     try {
-      DatabricksOutputConnection con = new DatabricksOutputConnection(c, catalogName, schemaName);
+      DatabricksOutputConnection con =
+          new DatabricksOutputConnection(c, catalogName, schemaName, statementClient);
+      con.setTableProperties(tableProperties, intermediateTableProperties);
+      con.setTableLayout(clusterBy, partitionedBy, layoutIntermediateTables);
+      if (accessTokenSource.isPresent()) {
+        con.setAccessTokenSource(accessTokenSource.get(), accessToken);
+      }
       c = null;
       return con;
     } finally {
@@ -0,0 +1,301 @@
+package org.embulk.output.databricks;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+
+// Cumulative metrics of the plugin in this JVM, registered as an MBean to be scraped through JMX.
+public class DatabricksOutputMetrics implements DatabricksOutputMetricsMBean {
+  public static final String OBJECT_NAME =
+      "org.embulk.output.databricks:type=DatabricksOutputMetrics";
+
+  private static DatabricksOutputMetrics instance = null;
+
+  public static synchronized DatabricksOutputMetrics getInstance() {
+    if (instance == null) {
+      instance = new DatabricksOutputMetrics();
+      instance.register();
+    }
+    return instance;
+  }
+
+  private final Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());
+  private final LoadProgress progress = new LoadProgress();
+  private final LongAdder uploadFailures = new LongAdder();
+  private final LongAdder copyFailures = new LongAdder();
+  private final LongAdder optimizeFailures = new LongAdder();
+  private final LongAdder uploadsSkipped = new LongAdder();
+  private final LongAdder bytesUploadSkipped = new LongAdder();
+  private final LongAdder apiRequests = new LongAdder();
+  private final LongAdder apiErrors = new LongAdder();
+  private final MetricsHistogram fileSizeBytes = new MetricsHistogram();
+  private final MetricsHistogram uploadMillis = new MetricsHistogram();
+  private final MetricsHistogram copyMillis = new MetricsHistogram();
+  private final MetricsHistogram optimizeMillis = new MetricsHistogram();
+  // The executors of tasks create threads on demand and never queue, so the futures submitted to
+  // them are counted as pending instead of their queues.
+  private final Map<ThreadPoolExecutor, Collection<? extends Future<?>>> executors =
+      new ConcurrentHashMap<>();
+
+  DatabricksOutputMetrics() {}
+
+  private void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (JMException | RuntimeException e) {
+      logger.warn("Failed to register metrics MBean {}: {}", OBJECT_NAME, e.toString());
+    }
+  }
+
+  // The counters of all tasks are added to this progress through ProgressReporter's total.
+  public LoadProgress getProgress() {
+    return progress;
+  }
+
+  public void recordUpload(long bytes, long millis, boolean succeeded) {
+    if (succeeded) {
+      fileSizeBytes.record(bytes);
+      uploadMillis.record(millis);
+    } else {
+      uploadFailures.increment();
+    }
+  }
+
+  // Files whose checksum matched a file uploaded before.
+  public void recordUploadSkipped(long bytes) {
+    uploadsSkipped.increment();
+    bytesUploadSkipped.add(bytes);
+  }
+
+  public void recordCopy(long millis, boolean succeeded) {
+    if (succeeded) {
+      copyMillis.record(millis);
+    } else {
+      copyFailures.increment();
+    }
+  }
+
+  public void recordOptimize(long millis, boolean succeeded) {
+    if (succeeded) {
+      optimizeMillis.record(millis);
+    } else {
+      optimizeFailures.increment();
+    }
+  }
+
+  public void recordApiRequest(boolean succeeded) {
+    apiRequests.increment();
+    if (!succeeded) {
+      apiErrors.increment();
+    }
+  }
+
+  public void registerExecutor(
+      ThreadPoolExecutor executor, Collection<? extends Future<?>> futures) {
+    executors.put(executor, futures);
+  }
+
+  public void unregisterExecutor(ThreadPoolExecutor executor) {
+    executors.remove(executor);
+  }
+
+  @Override
+  public long getRowsEncoded() {
+    return progress.getRowsEncoded();
+  }
+
+  @Override
+  public long getRowsLoaded() {
+    return progress.getRowsLoaded();
+  }
+
+  @Override
+  public long getBytesStaged() {
+    return progress.getBytesStaged();
+  }
+
+  @Override
+  public long getBytesUploaded() {
+    return progress.getBytesUploaded();
+  }
+
+  @Override
+  public long getFilesLoaded() {
+    return progress.getFilesLoaded();
+  }
+
+  @Override
+  public long getBytesWaitingLocally() {
+    return progress.getBytesWaiting();
+  }
+
+  @Override
+  public long getLocalStagingBytesInUse() {
+    return LocalStagingBudget.getInstance().getUsedBytes();
+  }
+
+  @Override
+  public int getUploadsInFlight() {
+    return progress.getUploadsInFlight();
+  }
+
+  @Override
+  public int getCopiesInFlight() {
+    return progress.getCopiesInFlight();
+  }
+
+  @Override
+  public int getStatementsInFlight() {
+    return AsyncStatementExecutor.getInstance().getRunningStatementCount();
+  }
+
+  @Override
+  public long getUploadFailures() {
+    return uploadFailures.sum();
+  }
+
+  @Override
+  public long getUploadsSkipped() {
+    return uploadsSkipped.sum();
+  }
+
+  @Override
+  public long getBytesUploadSkipped() {
+    return bytesUploadSkipped.sum();
+  }
+
+  @Override
+  public long getCopyFailures() {
+    return copyFailures.sum();
+  }
+
+  @Override
+  public long getOptimizeFailures() {
+    return optimizeFailures.sum();
+  }
+
+  @Override
+  public long getApiRequests() {
+    return apiRequests.sum();
+  }
+
+  @Override
+  public long getApiErrors() {
+    return apiErrors.sum();
+  }
+
+  @Override
+  public long getFileSizeBytesCount() {
+    return fileSizeBytes.getCount();
+  }
+
+  @Override
+  public double getFileSizeBytesMean() {
+    return fileSizeBytes.getMean();
+  }
+
+  @Override
+  public long getFileSizeBytesP50() {
+    return fileSizeBytes.getPercentile(50);
+  }
+
+  @Override
+  public long getFileSizeBytesP95() {
+    return fileSizeBytes.getPercentile(95);
+  }
+
+  @Override
+  public long getFileSizeBytesMax() {
+    return fileSizeBytes.getMax();
+  }
+
+  @Override
+  public double getUploadMillisMean() {
+    return uploadMillis.getMean();
+  }
+
+  @Override
+  public long getUploadMillisP50() {
+    return uploadMillis.getPercentile(50);
+  }
+
+  @Override
+  public long getUploadMillisP95() {
+    return uploadMillis.getPercentile(95);
+  }
+
+  @Override
+  public long getUploadMillisMax() {
+    return uploadMillis.getMax();
+  }
+
+  @Override
+  public double getCopyMillisMean() {
+    return copyMillis.getMean();
+  }
+
+  @Override
+  public long getCopyMillisP50() {
+    return copyMillis.getPercentile(50);
+  }
+
+  @Override
+  public long getCopyMillisP95() {
+    return copyMillis.getPercentile(95);
+  }
+
+  @Override
+  public long getCopyMillisMax() {
+    return copyMillis.getMax();
+  }
+
+  @Override
+  public long getOptimizeCount() {
+    return optimizeMillis.getCount();
+  }
+
+  @Override
+  public double getOptimizeMillisMean() {
+    return optimizeMillis.getMean();
+  }
+
+  @Override
+  public long getOptimizeMillisMax() {
+    return optimizeMillis.getMax();
+  }
+
+  @Override
+  public int getExecutorActiveThreads() {
+    return executors.keySet().stream().mapToInt(ThreadPoolExecutor::getActiveCount).sum();
+  }
+
+  @Override
+  public int getExecutorPoolSize() {
+    return executors.keySet().stream().mapToInt(ThreadPoolExecutor::getPoolSize).sum();
+  }
+
+  @Override
+  public int getPendingUploadsAndCopies() {
+    int count = 0;
+    for (Collection<? extends Future<?>> futures : executors.values()) {
+      for (Future<?> future : futures) {
+        if (!future.isDone()) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,75 @@
+package org.embulk.output.databricks;
+
+public interface DatabricksOutputMetricsMBean {
+  long getRowsEncoded();
+
+  long getRowsLoaded();
+
+  long getBytesStaged();
+
+  long getBytesUploaded();
+
+  long getFilesLoaded();
+
+  long getBytesWaitingLocally();
+
+  long getLocalStagingBytesInUse();
+
+  int getUploadsInFlight();
+
+  int getCopiesInFlight();
+
+  int getStatementsInFlight();
+
+  long getUploadFailures();
+
+  long getUploadsSkipped();
+
+  long getBytesUploadSkipped();
+
+  long getCopyFailures();
+
+  long getOptimizeFailures();
+
+  long getApiRequests();
+
+  long getApiErrors();
+
+  long getFileSizeBytesCount();
+
+  double getFileSizeBytesMean();
+
+  long getFileSizeBytesP50();
+
+  long getFileSizeBytesP95();
+
+  long getFileSizeBytesMax();
+
+  double getUploadMillisMean();
+
+  long getUploadMillisP50();
+
+  long getUploadMillisP95();
+
+  long getUploadMillisMax();
+
+  double getCopyMillisMean();
+
+  long getCopyMillisP50();
+
+  long getCopyMillisP95();
+
+  long getCopyMillisMax();
+
+  long getOptimizeCount();
+
+  double getOptimizeMillisMean();
+
+  long getOptimizeMillisMax();
+
+  int getExecutorActiveThreads();
+
+  int getExecutorPoolSize();
+
+  int getPendingUploadsAndCopies();
+}
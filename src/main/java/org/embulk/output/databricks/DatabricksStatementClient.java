@@ -0,0 +1,53 @@
+package org.embulk.output.databricks;
+
+import com.databricks.sdk.core.DatabricksConfig;
+import com.databricks.sdk.service.sql.StatementState;
+import com.databricks.sdk.service.sql.StatementStatus;
+import java.sql.SQLException;
+
+// Runs statements on a SQL warehouse through the SQL Statement Execution API.
+// https://docs.databricks.com/en/dev-tools/sql-execution-tutorial.html
+public class DatabricksStatementClient implements AsyncStatementExecutor.Client {
+  // One client is kept for the statements, so that polling reuses its HTTP connections.
+  private final DatabricksAPIClient apiClient;
+  private final String warehouseId;
+  private final String catalogName;
+  private final String schemaName;
+
+  public DatabricksStatementClient(
+      DatabricksConfig databricksConfig,
+      String warehouseId,
+      String catalogName,
+      String schemaName) {
+    this.apiClient = new DatabricksAPIClient(databricksConfig);
+    this.warehouseId = warehouseId;
+    this.catalogName = catalogName;
+    this.schemaName = schemaName;
+  }
+
+  @Override
+  public String submit(String statement) {
+    return apiClient.submitStatement(warehouseId, catalogName, schemaName, statement);
+  }
+
+  @Override
+  public boolean poll(String statementId) throws SQLException {
+    StatementStatus status = apiClient.fetchStatementStatus(statementId);
+    StatementState state = status.getState();
+    switch (state) {
+      case SUCCEEDED:
+        return true;
+      case PENDING:
+      case RUNNING:
+        return false;
+      default:
+        String message = status.getError() != null ? status.getError().getMessage() : "";
+        throw new SQLException(String.format("Statement %s %s: %s", statementId, state, message));
+    }
+  }
+
+  @Override
+  public void cancel(String statementId) {
+    apiClient.cancelStatement(statementId);
+  }
+}
@@ -0,0 +1,136 @@
+package org.embulk.output.databricks;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of a running load. The counters of each task are also added to the total of the JVM.
+public class LoadProgress {
+  private final Optional<LoadProgress> parent;
+  private volatile long startNanos;
+  private final LongAdder rowsEncoded = new LongAdder();
+  private final LongAdder bytesStaged = new LongAdder();
+  private final LongAdder bytesWaiting = new LongAdder();
+  private final LongAdder bytesUploaded = new LongAdder();
+  private final LongAdder rowsLoaded = new LongAdder();
+  private final LongAdder filesLoaded = new LongAdder();
+  private final AtomicInteger uploadsInFlight = new AtomicInteger();
+  private final AtomicInteger copiesInFlight = new AtomicInteger();
+
+  public LoadProgress() {
+    this(Optional.empty());
+  }
+
+  public LoadProgress(Optional<LoadProgress> parent) {
+    this.parent = parent;
+    this.startNanos = System.nanoTime();
+  }
+
+  public void reset() {
+    startNanos = System.nanoTime();
+    rowsEncoded.reset();
+    bytesStaged.reset();
+    bytesWaiting.reset();
+    bytesUploaded.reset();
+    rowsLoaded.reset();
+    filesLoaded.reset();
+    uploadsInFlight.set(0);
+    copiesInFlight.set(0);
+  }
+
+  public void addEncodedRow() {
+    rowsEncoded.increment();
+    parent.ifPresent(LoadProgress::addEncodedRow);
+  }
+
+  public void addStagedFile(long bytes) {
+    bytesStaged.add(bytes);
+    bytesWaiting.add(bytes);
+    parent.ifPresent(x -> x.addStagedFile(bytes));
+  }
+
+  public void startUpload() {
+    uploadsInFlight.incrementAndGet();
+    parent.ifPresent(LoadProgress::startUpload);
+  }
+
+  public void finishUpload(long bytes, boolean succeeded) {
+    uploadsInFlight.decrementAndGet();
+    bytesWaiting.add(-bytes);
+    if (succeeded) {
+      bytesUploaded.add(bytes);
+    }
+    parent.ifPresent(x -> x.finishUpload(bytes, succeeded));
+  }
+
+  public void startCopy() {
+    copiesInFlight.incrementAndGet();
+    parent.ifPresent(LoadProgress::startCopy);
+  }
+
+  public void finishCopy(long rows, boolean succeeded) {
+    copiesInFlight.decrementAndGet();
+    if (succeeded) {
+      rowsLoaded.add(rows);
+      filesLoaded.increment();
+    }
+    parent.ifPresent(x -> x.finishCopy(rows, succeeded));
+  }
+
+  public long getRowsEncoded() {
+    return rowsEncoded.sum();
+  }
+
+  public long getBytesStaged() {
+    return bytesStaged.sum();
+  }
+
+  public long getBytesWaiting() {
+    return bytesWaiting.sum();
+  }
+
+  public long getBytesUploaded() {
+    return bytesUploaded.sum();
+  }
+
+  public long getRowsLoaded() {
+    return rowsLoaded.sum();
+  }
+
+  public long getFilesLoaded() {
+    return filesLoaded.sum();
+  }
+
+  public int getUploadsInFlight() {
+    return uploadsInFlight.get();
+  }
+
+  public int getCopiesInFlight() {
+    return copiesInFlight.get();
+  }
+
+  public String format(Optional<Long> expectedRows) {
+    double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 0.001);
+    long rows = getRowsEncoded();
+    double staged = mb(getBytesStaged());
+    double uploaded = mb(getBytesUploaded());
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%,d rows encoded (%,.1f rows/s)", rows, rows / seconds));
+    sb.append(String.format(", %,.1f MB staged (%,.2f MB/s)", staged, staged / seconds));
+    sb.append(String.format(", %,.1f MB uploaded (%,.2f MB/s)", uploaded, uploaded / seconds));
+    sb.append(String.format(", %,d rows loaded in %,d files", getRowsLoaded(), getFilesLoaded()));
+    sb.append(String.format(", %,.1f MB waiting locally", mb(getBytesWaiting())));
+    sb.append(
+        String.format(
+            ", %d uploads and %d COPYs in flight", getUploadsInFlight(), getCopiesInFlight()));
+    if (expectedRows.isPresent() && rows > 0 && rows < expectedRows.get()) {
+      double etaSeconds = (expectedRows.get() - rows) / (rows / seconds);
+      sb.append(String.format(", ETA %,.0f seconds", etaSeconds));
+    }
+    return sb.toString();
+  }
+
+  private static double mb(long bytes) {
+    return bytes / (1024.0 * 1024.0);
+  }
+}
@@ -0,0 +1,66 @@
+package org.embulk.output.databricks;
+
+import java.util.Optional;
+
+// Tracks the bytes of the local staging files: the files waiting for upload and the files kept
+// until they are staged, i.e. partition files and dedup spill files.
+// Only the queued uploads are limited. The other files are counted so that uploads are made
+// synchronously earlier while they take the disk.
+// The budget is shared by all tasks running in the same JVM, because they share the same disk.
+public class LocalStagingBudget {
+  private static final LocalStagingBudget instance = new LocalStagingBudget();
+
+  public static LocalStagingBudget getInstance() {
+    return instance;
+  }
+
+  private long maxBytes = Long.MAX_VALUE;
+  private long usedBytes = 0;
+  private String transactionKey = null;
+
+  LocalStagingBudget() {}
+
+  // Called from transaction().
+  public synchronized void reset(Optional<Long> maxBytes) {
+    this.maxBytes = maxBytes.orElse(Long.MAX_VALUE);
+    this.usedBytes = 0;
+    this.transactionKey = null;
+  }
+
+  // Called by each task, as transaction() doesn't run in the JVMs of remote executors. The
+  // budget is reset only by the first task of a transaction, identified by transactionKey, so
+  // that the tasks of the same transaction share it.
+  public synchronized void configure(String transactionKey, Optional<Long> maxBytes) {
+    if (transactionKey.equals(this.transactionKey)) {
+      return;
+    }
+    this.maxBytes = maxBytes.orElse(Long.MAX_VALUE);
+    this.usedBytes = 0;
+    this.transactionKey = transactionKey;
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized boolean tryAcquire(long bytes) {
+    if (usedBytes + bytes > maxBytes) {
+      return false;
+    }
+    usedBytes += bytes;
+    return true;
+  }
+
+  // Counts a file that is kept regardless of the limit.
+  public synchronized void acquire(long bytes) {
+    usedBytes += bytes;
+  }
+
+  public synchronized void release(long bytes) {
+    usedBytes = Math.max(0, usedBytes - bytes);
+  }
+}
@@ -0,0 +1,233 @@
+package org.embulk.output.databricks;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.embulk.output.jdbc.JdbcSchema;
+
+// Collects the minimum and maximum values of the merge keys while the rows of a task are encoded,
+// so that MERGE can be limited to the range of the keys and Delta can skip the other files of the
+// target table by their statistics.
+// A range is represented as [type, min, max] to be passed through the task reports.
+// Only the keys of numeric, string, date and timestamp columns set with the values of the same
+// kind have ranges, so that the values compare the same way as in the table.
+public class MergeKeyRanges {
+  public static final String NUMBER = "number";
+  public static final String STRING = "string";
+  public static final String DATE = "date";
+  public static final String TIMESTAMP = "timestamp";
+
+  private final List<Integer> columnIndexes;
+  private final List<String> columnNames;
+  private final List<String> columnTypes;
+  private final String[] types;
+  private final Object[] mins;
+  private final Object[] maxes;
+  private final boolean[] unsupported;
+  private final boolean[] observed;
+
+  MergeKeyRanges(List<Integer> columnIndexes, List<String> columnNames, List<String> columnTypes) {
+    this.columnIndexes = columnIndexes;
+    this.columnNames = columnNames;
+    this.columnTypes = columnTypes;
+    int n = columnIndexes.size();
+    this.types = new String[n];
+    this.mins = new Object[n];
+    this.maxes = new Object[n];
+    this.unsupported = new boolean[n];
+    this.observed = new boolean[n];
+  }
+
+  public static MergeKeyRanges create(JdbcSchema schema, List<String> mergeKeys) {
+    List<Integer> columnIndexes = new ArrayList<>();
+    List<String> columnNames = new ArrayList<>();
+    List<String> columnTypes = new ArrayList<>();
+    for (String mergeKey : mergeKeys) {
+      for (int i = 0; i < schema.getCount(); i++) {
+        if (schema.getColumnName(i).equalsIgnoreCase(mergeKey)) {
+          columnIndexes.add(i);
+          columnNames.add(mergeKey);
+          columnTypes.add(toRangeType(schema.getColumn(i).getSqlType()));
+          break;
+        }
+      }
+    }
+    return new MergeKeyRanges(columnIndexes, columnNames, columnTypes);
+  }
+
+  static String toRangeType(int sqlType) {
+    switch (sqlType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        return NUMBER;
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.LONGVARCHAR:
+      case Types.NCHAR:
+      case Types.NVARCHAR:
+      case Types.LONGNVARCHAR:
+      case Types.CLOB:
+        return STRING;
+      case Types.DATE:
+        return DATE;
+      case Types.TIMESTAMP:
+      case Types.TIMESTAMP_WITH_TIMEZONE:
+        return TIMESTAMP;
+      default:
+        return null;
+    }
+  }
+
+  public void observeNumber(int columnIndex, BigDecimal value) {
+    observe(columnIndex, NUMBER, value);
+  }
+
+  public void observeString(int columnIndex, String value) {
+    observe(columnIndex, STRING, value);
+  }
+
+  public void observeDate(int columnIndex, LocalDate value) {
+    observe(columnIndex, DATE, value);
+  }
+
+  public void observeTimestamp(int columnIndex, Instant value) {
+    observe(columnIndex, TIMESTAMP, value);
+  }
+
+  // NULL never matches a key, so it doesn't change the range.
+  public void observeNull(int columnIndex) {
+    int i = columnIndexes.indexOf(columnIndex);
+    if (i >= 0) {
+      observed[i] = true;
+    }
+  }
+
+  // A key that wasn't observed in a row was set with an unsupported type.
+  public void endRow() {
+    for (int i = 0; i < observed.length; i++) {
+      if (!observed[i]) {
+        unsupported[i] = true;
+      }
+      observed[i] = false;
+    }
+  }
+
+  public Map<String, List<String>> toTaskReportValue() {
+    Map<String, List<String>> ranges = new LinkedHashMap<>();
+    for (int i = 0; i < columnNames.size(); i++) {
+      if (!unsupported[i] && types[i] != null) {
+        ranges.put(
+            columnNames.get(i),
+            Arrays.asList(types[i], toString(mins[i]), toString(maxes[i])));
+      }
+    }
+    return ranges;
+  }
+
+  // Returns the ranges covering all the given ranges. A key is dropped unless it has a range of
+  // the same type in all of them.
+  public static Map<String, List<String>> union(List<Map<String, List<String>>> rangesList) {
+    Map<String, List<String>> union = new LinkedHashMap<>();
+    if (rangesList.isEmpty()) {
+      return union;
+    }
+    for (Map.Entry<String, List<String>> entry : rangesList.get(0).entrySet()) {
+      String type = entry.getValue().get(0);
+      String min = entry.getValue().get(1);
+      String max = entry.getValue().get(2);
+      boolean covered = true;
+      for (Map<String, List<String>> ranges : rangesList.subList(1, rangesList.size())) {
+        List<String> range = ranges.get(entry.getKey());
+        if (range == null || !range.get(0).equals(type)) {
+          covered = false;
+          break;
+        }
+        if (compare(type, range.get(1), min) < 0) {
+          min = range.get(1);
+        }
+        if (compare(type, range.get(2), max) > 0) {
+          max = range.get(2);
+        }
+      }
+      if (covered) {
+        union.put(entry.getKey(), Arrays.asList(type, min, max));
+      }
+    }
+    return union;
+  }
+
+  private void observe(int columnIndex, String type, Object value) {
+    int i = columnIndexes.indexOf(columnIndex);
+    if (i < 0) {
+      return;
+    }
+    observed[i] = true;
+    if (!type.equals(columnTypes.get(i))) {
+      unsupported[i] = true;
+    } else if (types[i] == null) {
+      types[i] = type;
+      mins[i] = value;
+      maxes[i] = value;
+    } else {
+      if (compareValues(value, mins[i]) < 0) {
+        mins[i] = value;
+      }
+      if (compareValues(value, maxes[i]) > 0) {
+        maxes[i] = value;
+      }
+    }
+  }
+
+  private static int compare(String type, String a, String b) {
+    switch (type) {
+      case NUMBER:
+        return new BigDecimal(a).compareTo(new BigDecimal(b));
+      case DATE:
+        return LocalDate.parse(a).compareTo(LocalDate.parse(b));
+      case TIMESTAMP:
+        return Instant.parse(a).compareTo(Instant.parse(b));
+      default:
+        return compareCodePoints(a, b);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compareValues(Object a, Object b) {
+    if (a instanceof String) {
+      return compareCodePoints((String) a, (String) b);
+    }
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  // Databricks compares strings by their UTF-8 bytes, which is the order of code points rather
+  // than the order of UTF-16 chars of String.compareTo.
+  static int compareCodePoints(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(j);
+      if (ca != cb) {
+        return Integer.compare(ca, cb);
+      }
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    return Integer.compare(a.length() - i, b.length() - j);
+  }
+
+  // Dates and timestamps are formatted in ISO 8601, timestamps in UTC.
+  private static String toString(Object value) {
+    return value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString();
+  }
+}
@@ -0,0 +1,40 @@
+package org.embulk.output.databricks;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Records the statements of a merge that have completed, so that a retried commit doesn't run
+// them again. Databricks commits each statement, so the aggregated rows and the merged chunks
+// are not rolled back by a failure of the later statements.
+public class MergeProgress {
+  private volatile boolean aggregated = false;
+  // The chunks are kept across the retries, because they decide which rows each chunk merges.
+  private volatile Optional<List<String>> chunkBounds = Optional.empty();
+  private final Set<Integer> mergedChunks = ConcurrentHashMap.newKeySet();
+
+  public boolean isAggregated() {
+    return aggregated;
+  }
+
+  public void setAggregated() {
+    aggregated = true;
+  }
+
+  public Optional<List<String>> getChunkBounds() {
+    return chunkBounds;
+  }
+
+  public void setChunkBounds(List<String> chunkBounds) {
+    this.chunkBounds = Optional.of(chunkBounds);
+  }
+
+  public boolean isMerged(int chunk) {
+    return mergedChunks.contains(chunk);
+  }
+
+  public void setMerged(int chunk) {
+    mergedChunks.add(chunk);
+  }
+}
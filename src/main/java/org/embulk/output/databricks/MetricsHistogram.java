@@ -0,0 +1,51 @@
+package org.embulk.output.databricks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram with power of two buckets. Percentiles are reported as the upper bound of the bucket.
+public class MetricsHistogram {
+  private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    long v = Math.max(0, value);
+    buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+    count.increment();
+    sum.add(v);
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getMean() {
+    long c = getCount();
+    return c == 0 ? 0 : (double) sum.sum() / c;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getPercentile(double percentile) {
+    long c = getCount();
+    if (c == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(c * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        long upperBound = i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        return Math.min(getMax(), upperBound);
+      }
+    }
+    return getMax();
+  }
+}
@@ -0,0 +1,85 @@
+package org.embulk.output.databricks;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.embulk.output.jdbc.JdbcOutputConnector;
+
+// Runs the DDL of the intermediate tables over a pool of connections, so that creating and
+// dropping one table per task doesn't take one round-trip after another.
+public class ParallelTableOperations implements AutoCloseable {
+  public interface Operation {
+    void run(DatabricksOutputConnection con) throws SQLException;
+  }
+
+  private final JdbcOutputConnector connector;
+  private final ExecutorService executorService;
+  private final Queue<DatabricksOutputConnection> idleConnections = new ConcurrentLinkedQueue<>();
+  private final Queue<DatabricksOutputConnection> allConnections = new ConcurrentLinkedQueue<>();
+  private final List<Future<Void>> futures = new ArrayList<>();
+
+  public ParallelTableOperations(JdbcOutputConnector connector, int parallelism) {
+    this.connector = connector;
+    this.executorService = Executors.newFixedThreadPool(parallelism);
+  }
+
+  public synchronized void submit(Operation operation) {
+    futures.add(
+        executorService.submit(
+            () -> {
+              DatabricksOutputConnection con = acquireConnection();
+              try {
+                operation.run(con);
+              } finally {
+                idleConnections.add(con);
+              }
+              return null;
+            }));
+  }
+
+  // Waits for all the submitted operations, and throws the first failure if any.
+  public synchronized void await() throws SQLException {
+    SQLException failure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure =
+              e.getCause() instanceof SQLException
+                  ? (SQLException) e.getCause()
+                  : new SQLException(e.getCause());
+        }
+      }
+    }
+    futures.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    executorService.shutdownNow();
+    for (DatabricksOutputConnection con : allConnections) {
+      con.close();
+    }
+  }
+
+  private DatabricksOutputConnection acquireConnection() throws SQLException {
+    DatabricksOutputConnection con = idleConnections.poll();
+    if (con == null) {
+      con = (DatabricksOutputConnection) connector.connect(true);
+      allConnections.add(con);
+    }
+    return con;
+  }
+}
@@ -0,0 +1,81 @@
+package org.embulk.output.databricks;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+
+// Logs the progress of the running tasks and of the whole JVM periodically.
+public class ProgressReporter {
+  private static final ProgressReporter instance = new ProgressReporter();
+
+  public static ProgressReporter getInstance() {
+    return instance;
+  }
+
+  private final Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());
+  private final LoadProgress total =
+      new LoadProgress(Optional.of(DatabricksOutputMetrics.getInstance().getProgress()));
+  // keyed by the task index, so that the tasks are reported in numeric order
+  private final Map<Integer, LoadProgress> tasks = new ConcurrentSkipListMap<>();
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "embulk-output-databricks-progress");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private ScheduledFuture<?> schedule = null;
+  private Optional<Long> expectedRows = Optional.empty();
+
+  private ProgressReporter() {}
+
+  // Called from transaction(). The total is kept while the tasks of a transaction come and go.
+  public synchronized void reset(Optional<Long> expectedRows) {
+    if (schedule != null) {
+      schedule.cancel(false);
+      schedule = null;
+    }
+    tasks.clear();
+    total.reset();
+    this.expectedRows = expectedRows;
+  }
+
+  public synchronized LoadProgress register(int taskIndex, long intervalSeconds) {
+    LoadProgress progress = new LoadProgress(Optional.of(total));
+    if (intervalSeconds <= 0) {
+      return progress;
+    }
+    if (schedule == null) {
+      schedule =
+          scheduler.scheduleAtFixedRate(
+              this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    tasks.put(taskIndex, progress);
+    return progress;
+  }
+
+  public synchronized void unregister(int taskIndex) {
+    if (tasks.remove(taskIndex) != null && tasks.isEmpty()) {
+      schedule.cancel(false);
+      schedule = null;
+      logger.info("Progress total: {}", total.format(expectedRows));
+    }
+  }
+
+  private void report() {
+    try {
+      for (Map.Entry<Integer, LoadProgress> task : tasks.entrySet()) {
+        logger.info("Progress task {}: {}", task.getKey(), task.getValue().format(Optional.empty()));
+      }
+      logger.info("Progress total: {}", total.format(expectedRows));
+    } catch (RuntimeException e) {
+      // an exception would stop the schedule
+      logger.warn("Failed to report progress: {}", e.toString());
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package org.embulk.output.databricks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.embulk.output.jdbc.JdbcSchema;
+
+// Keeps only the last row of each merge key in a task, so that the older versions of the rows are
+// neither staged nor merged. The rows of the staging files are indexed by their keys in memory.
+// When the index grows over maxMemoryBytes, it's spilled to a file sorted by the keys, and the
+// spilled files are merged at the end, where the row of the latest spill wins.
+// Rows with a NULL key never match in MERGE, so all of them are kept.
+public class StagingFileDeduplicator implements AutoCloseable {
+  public interface Output {
+    void write(String line) throws IOException;
+  }
+
+  // Rows in memory are estimated to take this many bytes in addition to their characters.
+  private static final long ROW_OVERHEAD_BYTES = 128;
+
+  private final List<Integer> keyIndexes;
+  private final long maxMemoryBytes;
+  private Map<List<String>, String> lastRows = new HashMap<>();
+  private long memoryBytes = 0;
+  private final List<File> spillFiles = new ArrayList<>();
+  private File nullKeyFile = null;
+  private BufferedWriter nullKeyWriter = null;
+  // bytes of the spill files and the file of NULL keys counted in LocalStagingBudget
+  private long budgetBytes = 0;
+
+  StagingFileDeduplicator(List<Integer> keyIndexes, long maxMemoryBytes) {
+    this.keyIndexes = keyIndexes;
+    this.maxMemoryBytes = maxMemoryBytes;
+  }
+
+  public static StagingFileDeduplicator create(
+      JdbcSchema schema, List<String> mergeKeys, long maxMemoryBytes) {
+    return new StagingFileDeduplicator(findKeyIndexes(schema, mergeKeys), maxMemoryBytes);
+  }
+
+  private static List<Integer> findKeyIndexes(JdbcSchema schema, List<String> mergeKeys) {
+    List<Integer> keyIndexes = new ArrayList<>();
+    for (String mergeKey : mergeKeys) {
+      for (int i = 0; i < schema.getCount(); i++) {
+        if (schema.getColumnName(i).equalsIgnoreCase(mergeKey)) {
+          keyIndexes.add(i);
+          break;
+        }
+      }
+    }
+    return keyIndexes;
+  }
+
+  public void add(File file) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        add(line);
+      }
+    }
+  }
+
+  private void add(String line) throws IOException {
+    List<String> key = toKey(StagingFileReader.parseLine(line));
+    if (key == null) {
+      if (nullKeyWriter == null) {
+        nullKeyFile = File.createTempFile("embulk-output-databricks-dedup-", ".tsv.tmp");
+        nullKeyWriter = Files.newBufferedWriter(nullKeyFile.toPath(), StandardCharsets.UTF_8);
+      }
+      nullKeyWriter.write(line);
+      nullKeyWriter.write("\n");
+      acquireBudget(line.getBytes(StandardCharsets.UTF_8).length + 1);
+      return;
+    }
+    String previous = lastRows.put(key, line);
+    if (previous != null) {
+      memoryBytes -= estimateBytes(key, previous);
+    }
+    memoryBytes += estimateBytes(key, line);
+    if (memoryBytes > maxMemoryBytes) {
+      spill();
+    }
+  }
+
+  public boolean isEmpty() {
+    return lastRows.isEmpty() && spillFiles.isEmpty() && nullKeyFile == null;
+  }
+
+  // Writes the last row of each key, and the rows with a NULL key. Returns the number of rows.
+  public long finish(Output output) throws IOException {
+    long rows = 0;
+    if (nullKeyWriter != null) {
+      nullKeyWriter.close();
+      nullKeyWriter = null;
+      try (BufferedReader reader =
+          Files.newBufferedReader(nullKeyFile.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          output.write(line);
+          rows++;
+        }
+      }
+    }
+    if (spillFiles.isEmpty()) {
+      for (String line : lastRows.values()) {
+        output.write(line);
+        rows++;
+      }
+    } else {
+      spill();
+      rows += mergeSpillFiles(output);
+    }
+    close();
+    return rows;
+  }
+
+  @Override
+  public void close() {
+    if (nullKeyWriter != null) {
+      try {
+        nullKeyWriter.close();
+      } catch (IOException e) {
+        // the file is deleted anyway
+      }
+      nullKeyWriter = null;
+    }
+    if (nullKeyFile != null) {
+      nullKeyFile.delete();
+      nullKeyFile = null;
+    }
+    for (File spillFile : spillFiles) {
+      spillFile.delete();
+    }
+    spillFiles.clear();
+    lastRows = new HashMap<>();
+    memoryBytes = 0;
+    LocalStagingBudget.getInstance().release(budgetBytes);
+    budgetBytes = 0;
+  }
+
+  // Deduplicates the rows read by StagingFileReader in memory, without the rows added to this.
+  public List<List<String>> deduplicateRows(List<List<String>> rows) {
+    List<List<String>> deduplicated = new ArrayList<>();
+    Map<List<String>, List<String>> lastRowsOfKeys = new LinkedHashMap<>();
+    for (List<String> row : rows) {
+      List<String> key = toKey(row);
+      if (key == null) {
+        deduplicated.add(row);
+      } else {
+        lastRowsOfKeys.put(key, row);
+      }
+    }
+    deduplicated.addAll(lastRowsOfKeys.values());
+    return deduplicated;
+  }
+
+  private void spill() throws IOException {
+    List<Map.Entry<List<String>, String>> entries = new ArrayList<>(lastRows.entrySet());
+    entries.sort((a, b) -> compareKeys(a.getKey(), b.getKey()));
+    File spillFile = File.createTempFile("embulk-output-databricks-dedup-", ".tsv.tmp");
+    spillFiles.add(spillFile);
+    try (BufferedWriter writer =
+        Files.newBufferedWriter(spillFile.toPath(), StandardCharsets.UTF_8)) {
+      for (Map.Entry<List<String>, String> entry : entries) {
+        writer.write(entry.getValue());
+        writer.write("\n");
+      }
+    }
+    acquireBudget(spillFile.length());
+    lastRows = new HashMap<>();
+    memoryBytes = 0;
+  }
+
+  private void acquireBudget(long bytes) {
+    LocalStagingBudget.getInstance().acquire(bytes);
+    budgetBytes += bytes;
+  }
+
+  private static class SpillCursor {
+    private final int spillIndex;
+    private final BufferedReader reader;
+    private String line;
+    private List<String> key;
+
+    private SpillCursor(int spillIndex, BufferedReader reader) {
+      this.spillIndex = spillIndex;
+      this.reader = reader;
+    }
+  }
+
+  // Each spill file is sorted by the keys and has a key only once, so the files are merged like
+  // a merge sort, taking the row of the latest spill for each key.
+  private long mergeSpillFiles(Output output) throws IOException {
+    PriorityQueue<SpillCursor> queue =
+        new PriorityQueue<>(
+            (a, b) -> {
+              int result = compareKeys(a.key, b.key);
+              return result != 0 ? result : Integer.compare(b.spillIndex, a.spillIndex);
+            });
+    List<SpillCursor> cursors = new ArrayList<>();
+    long rows = 0;
+    try {
+      for (int i = 0; i < spillFiles.size(); i++) {
+        SpillCursor cursor =
+            new SpillCursor(
+                i, Files.newBufferedReader(spillFiles.get(i).toPath(), StandardCharsets.UTF_8));
+        cursors.add(cursor);
+        if (advance(cursor)) {
+          queue.add(cursor);
+        }
+      }
+      while (!queue.isEmpty()) {
+        SpillCursor latest = queue.poll();
+        output.write(latest.line);
+        rows++;
+        List<String> key = latest.key;
+        if (advance(latest)) {
+          queue.add(latest);
+        }
+        // skip the older rows of the same key
+        while (!queue.isEmpty() && compareKeys(queue.peek().key, key) == 0) {
+          SpillCursor older = queue.poll();
+          if (advance(older)) {
+            queue.add(older);
+          }
+        }
+      }
+    } finally {
+      for (SpillCursor cursor : cursors) {
+        cursor.reader.close();
+      }
+    }
+    return rows;
+  }
+
+  private boolean advance(SpillCursor cursor) throws IOException {
+    cursor.line = cursor.reader.readLine();
+    if (cursor.line == null) {
+      return false;
+    }
+    cursor.key = toKey(StagingFileReader.parseLine(cursor.line));
+    return true;
+  }
+
+  private List<String> toKey(List<String> row) {
+    List<String> key = new ArrayList<>(keyIndexes.size());
+    for (int index : keyIndexes) {
+      String value = index < row.size() ? row.get(index) : null;
+      if (value == null) {
+        return null;
+      }
+      key.add(value);
+    }
+    return key;
+  }
+
+  private static int compareKeys(List<String> a, List<String> b) {
+    for (int i = 0; i < a.size(); i++) {
+      int result = a.get(i).compareTo(b.get(i));
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  private static long estimateBytes(List<String> key, String line) {
+    long bytes = ROW_OVERHEAD_BYTES + 2L * line.length();
+    for (String value : key) {
+      bytes += 2L * value.length();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,178 @@
+package org.embulk.output.databricks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.embulk.config.ConfigException;
+import org.embulk.output.jdbc.JdbcSchema;
+
+// Splits the rows of staging files into one file per value of the partition_by columns, so that
+// each staged file and each COPY INTO writes into a single partition of the target table.
+// The files of the partitions grow across batches until they are taken to be staged.
+// At most maxOpenWriters files are open at a time. The least recently used one is closed and
+// reopened to append when more rows of the partition come.
+public class StagingFilePartitioner implements AutoCloseable {
+  public static class PartitionFile {
+    private final List<String> values;
+    private final File file;
+    private int rows = 0;
+
+    private PartitionFile(List<String> values, File file) {
+      this.values = values;
+      this.file = file;
+    }
+
+    public List<String> getValues() {
+      return values;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+  }
+
+  private final List<Integer> columnIndexes;
+  private final int maxOpenWriters;
+  private final Map<List<String>, PartitionFile> partitionFiles = new LinkedHashMap<>();
+  private final LinkedHashMap<List<String>, BufferedWriter> openWriters;
+  // bytes of the partition files counted in LocalStagingBudget
+  private long budgetBytes = 0;
+
+  StagingFilePartitioner(List<Integer> columnIndexes, int maxOpenWriters) {
+    this.columnIndexes = columnIndexes;
+    this.maxOpenWriters = maxOpenWriters;
+    this.openWriters = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  public static StagingFilePartitioner create(
+      JdbcSchema schema, List<String> partitionBy, int maxOpenWriters) {
+    List<Integer> columnIndexes = new ArrayList<>();
+    for (String column : partitionBy) {
+      columnIndexes.add(findColumnIndex(schema, column));
+    }
+    return new StagingFilePartitioner(columnIndexes, maxOpenWriters);
+  }
+
+  public void split(File file) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> values = partitionValues(StagingFileReader.parseLine(line));
+        BufferedWriter writer = openWriter(values);
+        writer.write(line);
+        writer.write("\n");
+        partitionFiles.get(values).rows++;
+      }
+    }
+    // all lines are copied to the partition files
+    LocalStagingBudget.getInstance().acquire(file.length());
+    budgetBytes += file.length();
+  }
+
+  // Takes the files of at least minBytes, or all of them if minBytes is 0.
+  // The caller stages the taken files and deletes them.
+  public List<PartitionFile> takeFiles(long minBytes) throws IOException {
+    List<PartitionFile> taken = new ArrayList<>();
+    Iterator<Map.Entry<List<String>, PartitionFile>> it = partitionFiles.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<List<String>, PartitionFile> entry = it.next();
+      BufferedWriter writer = openWriters.get(entry.getKey());
+      if (writer != null) {
+        writer.flush();
+      }
+      if (entry.getValue().file.length() >= minBytes) {
+        if (writer != null) {
+          writer.close();
+          openWriters.remove(entry.getKey());
+        }
+        taken.add(entry.getValue());
+        it.remove();
+        // the caller counts the file again when it's staged
+        long bytes = Math.min(budgetBytes, entry.getValue().file.length());
+        LocalStagingBudget.getInstance().release(bytes);
+        budgetBytes -= bytes;
+      }
+    }
+    return taken;
+  }
+
+  public boolean isEmpty() {
+    return partitionFiles.isEmpty();
+  }
+
+  @Override
+  public void close() {
+    for (BufferedWriter writer : openWriters.values()) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        // the file is deleted anyway
+      }
+    }
+    openWriters.clear();
+    for (PartitionFile partitionFile : partitionFiles.values()) {
+      partitionFile.file.delete();
+    }
+    partitionFiles.clear();
+    LocalStagingBudget.getInstance().release(budgetBytes);
+    budgetBytes = 0;
+  }
+
+  private BufferedWriter openWriter(List<String> values) throws IOException {
+    BufferedWriter writer = openWriters.get(values);
+    if (writer != null) {
+      return writer;
+    }
+    PartitionFile partitionFile = partitionFiles.get(values);
+    if (partitionFile == null) {
+      File file = File.createTempFile("embulk-output-databricks-partition-", ".tsv.tmp");
+      partitionFile = new PartitionFile(values, file);
+      partitionFiles.put(values, partitionFile);
+    }
+    if (openWriters.size() >= maxOpenWriters) {
+      closeLeastRecentlyUsedWriter();
+    }
+    writer =
+        Files.newBufferedWriter(
+            partitionFile.file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    openWriters.put(values, writer);
+    return writer;
+  }
+
+  private void closeLeastRecentlyUsedWriter() throws IOException {
+    Iterator<BufferedWriter> it = openWriters.values().iterator();
+    BufferedWriter writer = it.next();
+    it.remove();
+    writer.close();
+  }
+
+  private List<String> partitionValues(List<String> row) {
+    List<String> values = new ArrayList<>(columnIndexes.size());
+    for (int index : columnIndexes) {
+      values.add(index < row.size() ? row.get(index) : null);
+    }
+    return values;
+  }
+
+  private static int findColumnIndex(JdbcSchema schema, String name) {
+    for (int i = 0; i < schema.getCount(); i++) {
+      if (schema.getColumnName(i).equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    throw new ConfigException(String.format("partition_by column '%s' doesn't exist", name));
+  }
+}
@@ -0,0 +1,46 @@
+package org.embulk.output.databricks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads back a staging file as COPY INTO reads it with the FORMAT_OPTIONS of
+// DatabricksOutputConnection.buildCopySQL, so that the rows can be inserted without staging.
+public class StagingFileReader {
+  private static final String NULL_STRING = "\\N";
+
+  public static List<List<String>> readRows(File file) throws IOException {
+    List<List<String>> rows = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        rows.add(parseLine(line));
+      }
+    }
+    return rows;
+  }
+
+  // A null value is \N or an empty field. A field enclosed in double quotes is unquoted,
+  // so that "" is an empty string.
+  public static List<String> parseLine(String line) {
+    List<String> values = new ArrayList<>();
+    for (String field : line.split("\t", -1)) {
+      values.add(parseField(field));
+    }
+    return values;
+  }
+
+  private static String parseField(String field) {
+    if (field.isEmpty() || field.equals(NULL_STRING)) {
+      return null;
+    }
+    if (field.length() >= 2 && field.startsWith("\"") && field.endsWith("\"")) {
+      return field.substring(1, field.length() - 1).replace("\"\"", "\"").replace("\\\"", "\"");
+    }
+    return field;
+  }
+}
@@ -0,0 +1,131 @@
+package org.embulk.output.databricks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import org.embulk.config.ConfigException;
+import org.embulk.output.jdbc.JdbcSchema;
+
+// Sorts the rows of a staging file by sort_keys before it's staged, so that each file loaded by
+// COPY INTO has narrow min/max statistics of the keys and queries can skip it.
+// Each file is sorted independently in memory. Its size is limited by batch_size.
+public class StagingFileSorter {
+  // The lines and their parsed values take a few times the file size in the heap.
+  public static final long MAX_FILE_SIZE = 256L * 1024 * 1024;
+
+  private final List<Integer> columnIndexes;
+  private final List<Boolean> numericColumns;
+
+  StagingFileSorter(List<Integer> columnIndexes, List<Boolean> numericColumns) {
+    this.columnIndexes = columnIndexes;
+    this.numericColumns = numericColumns;
+  }
+
+  public static StagingFileSorter create(JdbcSchema schema, List<String> sortKeys) {
+    List<Integer> columnIndexes = new ArrayList<>();
+    List<Boolean> numericColumns = new ArrayList<>();
+    for (String sortKey : sortKeys) {
+      int index = findColumnIndex(schema, sortKey);
+      columnIndexes.add(index);
+      numericColumns.add(isNumericType(schema.getColumn(index).getSqlType()));
+    }
+    return new StagingFileSorter(columnIndexes, numericColumns);
+  }
+
+  public void sort(File file) throws IOException {
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    List<String> sorted = sortLines(lines);
+    try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      for (String line : sorted) {
+        writer.write(line);
+        writer.write("\n");
+      }
+    }
+  }
+
+  List<String> sortLines(List<String> lines) {
+    List<SortEntry> entries = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      entries.add(new SortEntry(line, StagingFileReader.parseLine(line)));
+    }
+    // List.sort is stable, so the rows with the same keys keep the input order.
+    entries.sort(this::compare);
+    List<String> sorted = new ArrayList<>(lines.size());
+    for (SortEntry entry : entries) {
+      sorted.add(entry.line);
+    }
+    return sorted;
+  }
+
+  private int compare(SortEntry a, SortEntry b) {
+    for (int i = 0; i < columnIndexes.size(); i++) {
+      int index = columnIndexes.get(i);
+      int result = compareValues(a.get(index), b.get(index), numericColumns.get(i));
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  // NULL comes first, as ORDER BY ... ASC of Databricks.
+  private static int compareValues(String a, String b, boolean numeric) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    if (numeric) {
+      try {
+        return new BigDecimal(a).compareTo(new BigDecimal(b));
+      } catch (NumberFormatException e) {
+        // NaN and Infinity of floating point columns are compared as strings
+      }
+    }
+    return MergeKeyRanges.compareCodePoints(a, b);
+  }
+
+  private static int findColumnIndex(JdbcSchema schema, String name) {
+    for (int i = 0; i < schema.getCount(); i++) {
+      if (schema.getColumnName(i).equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    throw new ConfigException(String.format("sort_keys column '%s' doesn't exist", name));
+  }
+
+  private static boolean isNumericType(int sqlType) {
+    switch (sqlType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.FLOAT:
+      case Types.REAL:
+      case Types.DOUBLE:
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static class SortEntry {
+    private final String line;
+    private final List<String> values;
+
+    private SortEntry(String line, List<String> values) {
+      this.line = line;
+      this.values = values;
+    }
+
+    private String get(int index) {
+      return index < values.size() ? values.get(index) : null;
+    }
+  }
+}
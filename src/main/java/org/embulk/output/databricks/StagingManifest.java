@@ -0,0 +1,145 @@
+package org.embulk.output.databricks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+// The list of files staged by a task, stored in the staging volume next to them.
+// A rerun with the same run_id reads it to skip the files that were already uploaded or loaded.
+// It's stored as append-only segments of the entries changed since the previous segment, so the
+// entries of a later segment replace the ones of the same sequence.
+public class StagingManifest {
+  public enum Status {
+    UPLOADED,
+    LOADED,
+    LOADED_AND_DELETED
+  }
+
+  public static class Entry {
+    private final long sequence;
+    private final String filePath;
+    private final int rows;
+    private final long bytes;
+    private final String checksum;
+    private final Status status;
+    private final String table;
+
+    public Entry(
+        long sequence,
+        String filePath,
+        int rows,
+        long bytes,
+        String checksum,
+        Status status,
+        String table) {
+      this.sequence = sequence;
+      this.filePath = filePath;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.checksum = checksum;
+      this.status = status;
+      this.table = table;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public String getFilePath() {
+      return filePath;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public String getChecksum() {
+      return checksum;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    public String getTable() {
+      return table;
+    }
+
+    public Entry withStatus(Status status, String table) {
+      return new Entry(sequence, filePath, rows, bytes, checksum, status, table);
+    }
+  }
+
+  private final Map<Long, Entry> entries = new TreeMap<>();
+
+  public static StagingManifest parse(String content) {
+    StagingManifest manifest = new StagingManifest();
+    for (String line : content.split("\n")) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] fields = line.split("\t", -1);
+      if (fields.length != 7) {
+        throw new IllegalArgumentException(String.format("invalid manifest line '%s'", line));
+      }
+      manifest.put(
+          new Entry(
+              Long.parseLong(fields[0]),
+              fields[1],
+              Integer.parseInt(fields[2]),
+              Long.parseLong(fields[3]),
+              fields[4],
+              Status.valueOf(fields[5]),
+              fields[6]));
+    }
+    return manifest;
+  }
+
+  public synchronized String serialize() {
+    return serialize(entries.values());
+  }
+
+  public static String serialize(Collection<Entry> entries) {
+    StringBuilder sb = new StringBuilder();
+    for (Entry entry : entries) {
+      sb.append(entry.getSequence()).append('\t');
+      sb.append(entry.getFilePath()).append('\t');
+      sb.append(entry.getRows()).append('\t');
+      sb.append(entry.getBytes()).append('\t');
+      sb.append(entry.getChecksum()).append('\t');
+      sb.append(entry.getStatus()).append('\t');
+      sb.append(entry.getTable()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  // Returns the entry of a file staged before only if it has the same content.
+  public synchronized Optional<Entry> find(long sequence, String checksum) {
+    Entry entry = entries.get(sequence);
+    if (entry == null || !entry.getChecksum().equals(checksum)) {
+      return Optional.empty();
+    }
+    return Optional.of(entry);
+  }
+
+  public synchronized void put(Entry entry) {
+    entries.put(entry.getSequence(), entry);
+  }
+
+  public synchronized void putAll(StagingManifest segment) {
+    for (Entry entry : segment.getEntries()) {
+      put(entry);
+    }
+  }
+
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(entries.values());
+  }
+}
@@ -0,0 +1,41 @@
+package org.embulk.output.databricks;
+
+import com.databricks.sdk.core.DatabricksConfig;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Creates the staging volume when the first file is staged, so that a load without rows to stage
+// doesn't create and delete a volume. The tasks in the same JVM create it only once.
+public class StagingVolumeCreator {
+  private static final StagingVolumeCreator instance = new StagingVolumeCreator();
+
+  public static StagingVolumeCreator getInstance() {
+    return instance;
+  }
+
+  private final Set<String> createdVolumes = ConcurrentHashMap.newKeySet();
+
+  StagingVolumeCreator() {}
+
+  public void reset() {
+    createdVolumes.clear();
+  }
+
+  public void createIfNotExists(
+      DatabricksConfig databricksConfig, String catalogName, String schemaName, String volumeName) {
+    String name = String.format("%s.%s.%s", catalogName, schemaName, volumeName);
+    if (createdVolumes.contains(name)) {
+      return;
+    }
+    synchronized (this) {
+      if (createdVolumes.contains(name)) {
+        return;
+      }
+      // A volume of the same run_id may be left by a failed run, and the tasks in other JVMs may
+      // create it at the same time.
+      new DatabricksAPIClient(databricksConfig)
+          .createVolumeIfNotExists(catalogName, schemaName, volumeName);
+      createdVolumes.add(name);
+    }
+  }
+}
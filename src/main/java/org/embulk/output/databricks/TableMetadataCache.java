@@ -0,0 +1,76 @@
+package org.embulk.output.databricks;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.embulk.output.jdbc.JdbcSchema;
+import org.embulk.output.jdbc.TableIdentifier;
+
+// Caches the results of DatabaseMetaData lookups of tables during a transaction, because the
+// Databricks JDBC driver runs a slow catalog query for each of them.
+// The entries of a table are invalidated by DDL on it through DatabricksOutputConnection.
+// Outside of a transaction, the lookups are not cached.
+public class TableMetadataCache {
+  private static final TableMetadataCache instance = new TableMetadataCache();
+
+  public static TableMetadataCache getInstance() {
+    return instance;
+  }
+
+  public interface Loader<T> {
+    T load() throws SQLException;
+  }
+
+  private final Map<List<String>, Boolean> tableExists = new ConcurrentHashMap<>();
+  private final Map<List<String>, Optional<JdbcSchema>> schemas = new ConcurrentHashMap<>();
+  private volatile boolean enabled = false;
+
+  TableMetadataCache() {}
+
+  public void begin() {
+    tableExists.clear();
+    schemas.clear();
+    enabled = true;
+  }
+
+  public void end() {
+    enabled = false;
+    tableExists.clear();
+    schemas.clear();
+  }
+
+  public boolean tableExists(TableIdentifier table, Loader<Boolean> loader) throws SQLException {
+    return get(tableExists, table, loader);
+  }
+
+  public Optional<JdbcSchema> getSchema(TableIdentifier table, Loader<Optional<JdbcSchema>> loader)
+      throws SQLException {
+    return get(schemas, table, loader);
+  }
+
+  public void invalidate(TableIdentifier table) {
+    tableExists.remove(toKey(table));
+    schemas.remove(toKey(table));
+  }
+
+  private <T> T get(Map<List<String>, T> cache, TableIdentifier table, Loader<T> loader)
+      throws SQLException {
+    if (!enabled) {
+      return loader.load();
+    }
+    List<String> key = toKey(table);
+    T value = cache.get(key);
+    if (value == null) {
+      value = loader.load();
+      cache.put(key, value);
+    }
+    return value;
+  }
+
+  private static List<String> toKey(TableIdentifier table) {
+    return Arrays.asList(table.getDatabase(), table.getSchemaName(), table.getTableName());
+  }
+}
@@ -0,0 +1,56 @@
+package org.embulk.output.databricks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAdaptiveBatchSizer {
+  @Test
+  public void testInitialBatchSizeIsClamped() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+    sizer.reset(100, 1000, 10000, 10.0);
+    Assert.assertEquals(1000, sizer.getBatchSize());
+    sizer.reset(100000, 1000, 10000, 10.0);
+    Assert.assertEquals(10000, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testFollowsUploadThroughput() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+    sizer.reset(1000, 1, Long.MAX_VALUE, 10.0);
+    sizer.recordUpload(1000, 1.0);
+    Assert.assertEquals(10000, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testGrowsWithCopyOverhead() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+    sizer.reset(1000, 1, Long.MAX_VALUE, 10.0);
+    sizer.recordUpload(1000, 1.0);
+    // COPY seconds = 5 + bytes / 1000
+    sizer.recordCopy(1000, 6.0);
+    sizer.recordCopy(3000, 8.0);
+    Assert.assertEquals(5.0, sizer.getCopyOverheadSeconds(), 0.001);
+    Assert.assertEquals(20000, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testBatchSizeIsBounded() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+    sizer.reset(1000, 500, 5000, 10.0);
+    sizer.recordUpload(1000, 1.0);
+    Assert.assertEquals(5000, sizer.getBatchSize());
+    sizer.reset(1000, 500, 5000, 10.0);
+    sizer.recordUpload(10, 1.0);
+    Assert.assertEquals(500, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testNotAdjustedBeforeReset() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+    Assert.assertFalse(sizer.isInitialized());
+    sizer.recordUpload(1000, 1.0);
+    Assert.assertEquals(0, sizer.getBatchSize());
+    sizer.reset(1000, 1, Long.MAX_VALUE, 10.0);
+    Assert.assertTrue(sizer.isInitialized());
+  }
+}
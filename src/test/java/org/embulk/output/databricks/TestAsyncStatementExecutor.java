@@ -0,0 +1,139 @@
+package org.embulk.output.databricks;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAsyncStatementExecutor {
+  @Test
+  public void testCompletesWhenStatementSucceeds() {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(3600 * 1000, 0);
+    FakeClient client = new FakeClient();
+    CompletableFuture<Void> future = executor.submit(client, "COPY INTO t");
+    Assert.assertEquals("COPY INTO t", client.statements.get(0));
+
+    executor.pollAll();
+    Assert.assertFalse(future.isDone());
+    client.states.put("0", "SUCCEEDED");
+    executor.pollAll();
+    Assert.assertTrue(future.isDone());
+    Assert.assertFalse(future.isCompletedExceptionally());
+    Assert.assertEquals(0, executor.getRunningStatementCount());
+  }
+
+  @Test
+  public void testManyStatementsInFlight() {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(3600 * 1000, 0);
+    FakeClient client = new FakeClient();
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      futures.add(executor.submit(client, "COPY INTO t"));
+    }
+    Assert.assertEquals(200, executor.getRunningStatementCount());
+    for (int i = 0; i < 200; i++) {
+      client.states.put(String.valueOf(i), "SUCCEEDED");
+    }
+    executor.pollAll();
+    Assert.assertEquals(0, executor.getRunningStatementCount());
+    futures.forEach(x -> Assert.assertTrue(x.isDone()));
+  }
+
+  @Test
+  public void testFailedStatement() throws InterruptedException {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(3600 * 1000, 0);
+    FakeClient client = new FakeClient();
+    CompletableFuture<Void> future = executor.submit(client, "MERGE INTO t");
+    client.states.put("0", "FAILED");
+    executor.pollAll();
+    try {
+      future.get();
+      Assert.fail();
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof SQLException);
+    }
+  }
+
+  @Test
+  public void testExecuteThrowsSQLException() {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(10, 0);
+    FakeClient client = new FakeClient();
+    client.states.put("0", "FAILED");
+    Assert.assertThrows(SQLException.class, () -> executor.execute(client, "INSERT INTO t"));
+  }
+
+  @Test
+  public void testCancel() {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(3600 * 1000, 0);
+    FakeClient client = new FakeClient();
+    CompletableFuture<Void> future = executor.submit(client, "COPY INTO t");
+    future.cancel(true);
+    executor.pollAll();
+    Assert.assertEquals(1, client.cancelled.size());
+    Assert.assertEquals("0", client.cancelled.get(0));
+    Assert.assertEquals(0, executor.getRunningStatementCount());
+  }
+
+  @Test
+  public void testRetriesTransientPollFailure() {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(3600 * 1000, 0);
+    FakeClient client = new FakeClient();
+    CompletableFuture<Void> future = executor.submit(client, "COPY INTO t");
+    client.states.put("0", "UNAVAILABLE");
+    executor.pollAll();
+    Assert.assertFalse(future.isDone());
+    client.states.put("0", "SUCCEEDED");
+    executor.pollAll();
+    Assert.assertTrue(future.isDone());
+    Assert.assertFalse(future.isCompletedExceptionally());
+    Assert.assertTrue(client.cancelled.isEmpty());
+  }
+
+  @Test
+  public void testCancelsWhenPollKeepsFailing() {
+    AsyncStatementExecutor executor = new AsyncStatementExecutor(3600 * 1000, 0);
+    FakeClient client = new FakeClient();
+    CompletableFuture<Void> future = executor.submit(client, "MERGE INTO t");
+    client.states.put("0", "UNAVAILABLE");
+    for (int i = 0; i < 8; i++) {
+      executor.pollAll();
+    }
+    Assert.assertTrue(future.isCompletedExceptionally());
+    Assert.assertEquals(1, client.cancelled.size());
+    Assert.assertEquals(0, executor.getRunningStatementCount());
+  }
+
+  private static class FakeClient implements AsyncStatementExecutor.Client {
+    private final List<String> statements = new ArrayList<>();
+    private final Map<String, String> states = new ConcurrentHashMap<>();
+    private final List<String> cancelled = new ArrayList<>();
+
+    @Override
+    public synchronized String submit(String statement) {
+      statements.add(statement);
+      return String.valueOf(statements.size() - 1);
+    }
+
+    @Override
+    public boolean poll(String statementId) throws SQLException {
+      String state = states.getOrDefault(statementId, "RUNNING");
+      if (state.equals("FAILED")) {
+        throw new SQLException("failed");
+      }
+      if (state.equals("UNAVAILABLE")) {
+        throw new RuntimeException("503 Service Unavailable");
+      }
+      return state.equals("SUCCEEDED");
+    }
+
+    @Override
+    public void cancel(String statementId) {
+      cancelled.add(statementId);
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package org.embulk.output.databricks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDatabricksCopyBatchInsert {
+  @Test
+  public void testCreateDeterministicFileName() {
+    Assert.assertEquals(
+        "run1_task00003_0000000012_md5_0000abcd",
+        DatabricksCopyBatchInsert.createDeterministicFileName("run1", 3, 12, "md5:0000abcd"));
+  }
+
+  @Test
+  public void testDeterministicFileNameDependsOnContent() {
+    Assert.assertNotEquals(
+        DatabricksCopyBatchInsert.createDeterministicFileName("run1", 0, 0, "md5:00000001"),
+        DatabricksCopyBatchInsert.createDeterministicFileName("run1", 0, 0, "md5:00000002"));
+  }
+
+  @Test
+  public void testFormatChecksum() throws NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance("MD5");
+    Assert.assertEquals(
+        "md5:d41d8cd98f00b204e9800998ecf8427e", DatabricksCopyBatchInsert.formatChecksum(digest));
+    digest.update("abc".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(
+        "md5:900150983cd24fb0d6963f7d28e17f72", DatabricksCopyBatchInsert.formatChecksum(digest));
+  }
+}
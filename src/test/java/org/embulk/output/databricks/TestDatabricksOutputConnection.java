@@ -53,6 +53,17 @@ public class TestDatabricksOutputConnection {
     }
   }
 
+  @Test
+  public void testBuildInsertValuesSQL() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      TableIdentifier tableIdentifier = new TableIdentifier("database", "schemaName", "tableName");
+      String actual = conn.buildInsertValuesSQL(tableIdentifier, buildJdbcSchema(), 2);
+      String expected =
+          "INSERT INTO `database`.`schemaName`.`tableName` (`あ`, ````) VALUES (CAST(? AS string), CAST(? AS bigint)), (CAST(? AS string), CAST(? AS bigint))";
+      Assert.assertEquals(expected, actual);
+    }
+  }
+
   @Test
   public void testBuildAggregateSQL() throws SQLException {
     try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
@@ -89,6 +100,132 @@ public class TestDatabricksOutputConnection {
     Assert.assertEquals(expected, actual);
   }
 
+  @Test
+  public void testMergeConfigSQLWithMergeKeyRanges() throws SQLException {
+    List<String> mergeKeys = buildMergeKeys("col0", "col1");
+    Map<String, List<String>> mergeKeyRanges = new HashMap<>();
+    mergeKeyRanges.put("col0", Arrays.asList("number", "-1", "100"));
+    mergeKeyRanges.put("col1", Arrays.asList("string", "a'b", "c\\d"));
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      conn.setMergeKeyRanges(mergeKeyRanges);
+      TableIdentifier aggregateToTable =
+          new TableIdentifier("database", "schemaName", "tableName9");
+      TableIdentifier toTable = new TableIdentifier("database", "schemaName", "tableName100");
+      String actual =
+          conn.buildCollectMergeSql(
+              aggregateToTable,
+              buildJdbcSchema(),
+              toTable,
+              new MergeConfig(mergeKeys, Optional.empty()));
+      String expected =
+          "MERGE INTO `database`.`schemaName`.`tableName100` T  USING `database`.`schemaName`.`tableName9` S  ON (T.`col0` = S.`col0` AND T.`col1` = S.`col1` AND T.`col0` BETWEEN -1 AND 100 AND T.`col1` BETWEEN 'a\\'b' AND 'c\\\\d') WHEN MATCHED THEN  UPDATE SET `あ` = S.`あ`, ```` = S.```` WHEN NOT MATCHED THEN INSERT (`あ`, ````) VALUES (S.`あ`, S.````);";
+      Assert.assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testMergeConfigSQLWithSkipUnchangedRows() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      conn.setSkipUnchangedRows(true);
+      TableIdentifier aggregateToTable =
+          new TableIdentifier("database", "schemaName", "tableName9");
+      TableIdentifier toTable = new TableIdentifier("database", "schemaName", "tableName100");
+      String actual =
+          conn.buildCollectMergeSql(
+              aggregateToTable,
+              buildJdbcSchema(),
+              toTable,
+              new MergeConfig(buildMergeKeys("あ"), Optional.empty()));
+      String expected =
+          "MERGE INTO `database`.`schemaName`.`tableName100` T  USING `database`.`schemaName`.`tableName9` S  ON (T.`あ` = S.`あ`) WHEN MATCHED AND NOT (T.```` <=> S.````) THEN  UPDATE SET `あ` = S.`あ`, ```` = S.```` WHEN NOT MATCHED THEN INSERT (`あ`, ````) VALUES (S.`あ`, S.````);";
+      Assert.assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testMergeConfigSQLWithChunk() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      conn.setMergeChunks(4, new MergeProgress());
+      TableIdentifier aggregateToTable =
+          new TableIdentifier("database", "schemaName", "tableName9");
+      TableIdentifier toTable = new TableIdentifier("database", "schemaName", "tableName100");
+      String actual =
+          conn.buildCollectMergeSql(
+              aggregateToTable,
+              buildJdbcSchema(),
+              toTable,
+              new MergeConfig(buildMergeKeys("col0", "col1"), Optional.empty()),
+              Optional.of("10"),
+              Optional.of("20"));
+      String expected =
+          "MERGE INTO `database`.`schemaName`.`tableName100` T  USING (SELECT * FROM `database`.`schemaName`.`tableName9` WHERE `col0` >= 10 AND `col0` < 20) S  ON (T.`col0` = S.`col0` AND T.`col1` = S.`col1` AND T.`col0` >= 10 AND T.`col0` < 20) WHEN MATCHED THEN  UPDATE SET `あ` = S.`あ`, ```` = S.```` WHEN NOT MATCHED THEN INSERT (`あ`, ````) VALUES (S.`あ`, S.````);";
+      Assert.assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testMergeConfigSQLWithFirstChunk() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      conn.setMergeChunks(4, new MergeProgress());
+      TableIdentifier aggregateToTable =
+          new TableIdentifier("database", "schemaName", "tableName9");
+      TableIdentifier toTable = new TableIdentifier("database", "schemaName", "tableName100");
+      String actual =
+          conn.buildCollectMergeSql(
+              aggregateToTable,
+              buildJdbcSchema(),
+              toTable,
+              new MergeConfig(buildMergeKeys("col0"), Optional.empty()),
+              Optional.empty(),
+              Optional.of("DATE '2024-01-01'"));
+      String expected =
+          "MERGE INTO `database`.`schemaName`.`tableName100` T  USING (SELECT * FROM `database`.`schemaName`.`tableName9` WHERE (`col0` IS NULL OR `col0` < DATE '2024-01-01')) S  ON (T.`col0` = S.`col0` AND T.`col0` < DATE '2024-01-01') WHEN MATCHED THEN  UPDATE SET `あ` = S.`あ`, ```` = S.```` WHEN NOT MATCHED THEN INSERT (`あ`, ````) VALUES (S.`あ`, S.````);";
+      Assert.assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testBuildTablePropertiesClause() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      Map<String, String> properties = new LinkedHashMap<>();
+      properties.put("delta.dataSkippingNumIndexedCols", "0");
+      properties.put("comment", "it's");
+      Assert.assertEquals(
+          " TBLPROPERTIES ('delta.dataSkippingNumIndexedCols' = '0', 'comment' = 'it\\'s')",
+          conn.buildTablePropertiesClause(properties));
+      Assert.assertEquals("", conn.buildTablePropertiesClause(Collections.emptyMap()));
+    }
+  }
+
+  @Test
+  public void testBuildTableLayoutClause() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      Assert.assertEquals("", conn.buildTableLayoutClause());
+      conn.setTableLayout(Arrays.asList("col0", "col1"), Collections.emptyList(), false);
+      Assert.assertEquals(" CLUSTER BY (`col0`, `col1`)", conn.buildTableLayoutClause());
+      conn.setTableLayout(Collections.emptyList(), Arrays.asList("col0"), false);
+      Assert.assertEquals(" PARTITIONED BY (`col0`)", conn.buildTableLayoutClause());
+    }
+  }
+
+  @Test
+  public void testBuildOptimizeSQL() throws SQLException {
+    try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
+      TableIdentifier table = new TableIdentifier("database", "schemaName", "tableName");
+      Assert.assertEquals(
+          "OPTIMIZE `database`.`schemaName`.`tableName`",
+          conn.buildOptimizeSQL(table, Collections.emptyMap(), Collections.emptyList()));
+      Map<String, List<String>> partitionRanges = new LinkedHashMap<>();
+      partitionRanges.put("col0", Arrays.asList("number", "1", "3"));
+      partitionRanges.put("col1", Arrays.asList("date", "2024-01-01", "2024-01-31"));
+      String expected =
+          "OPTIMIZE `database`.`schemaName`.`tableName` WHERE `col0` BETWEEN 1 AND 3 AND `col1` BETWEEN DATE '2024-01-01' AND DATE '2024-01-31' ZORDER BY (`col2`, `col3`)";
+      Assert.assertEquals(
+          expected,
+          conn.buildOptimizeSQL(table, partitionRanges, Arrays.asList("col2", "col3")));
+    }
+  }
+
   private String mergeConfigSQL(MergeConfig mergeConfig) throws SQLException {
     try (DatabricksOutputConnection conn = buildDummyOutputConnection()) {
       TableIdentifier aggregateToTable =
@@ -0,0 +1,60 @@
+package org.embulk.output.databricks;
+
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLocalStagingBudget {
+  @Test
+  public void testTryAcquire() {
+    LocalStagingBudget budget = new LocalStagingBudget();
+    budget.reset(Optional.of(100L));
+    Assert.assertTrue(budget.tryAcquire(60));
+    Assert.assertFalse(budget.tryAcquire(50));
+    Assert.assertTrue(budget.tryAcquire(40));
+    Assert.assertEquals(100, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testRelease() {
+    LocalStagingBudget budget = new LocalStagingBudget();
+    budget.reset(Optional.of(100L));
+    Assert.assertTrue(budget.tryAcquire(80));
+    Assert.assertFalse(budget.tryAcquire(80));
+    budget.release(80);
+    Assert.assertEquals(0, budget.getUsedBytes());
+    Assert.assertTrue(budget.tryAcquire(80));
+  }
+
+  @Test
+  public void testUnlimitedByDefault() {
+    LocalStagingBudget budget = new LocalStagingBudget();
+    Assert.assertTrue(budget.tryAcquire(Long.MAX_VALUE / 2));
+    Assert.assertTrue(budget.tryAcquire(Long.MAX_VALUE / 4));
+  }
+
+  @Test
+  public void testAcquireIgnoresLimit() {
+    LocalStagingBudget budget = new LocalStagingBudget();
+    budget.reset(Optional.of(100L));
+    budget.acquire(150);
+    Assert.assertEquals(150, budget.getUsedBytes());
+    Assert.assertFalse(budget.tryAcquire(1));
+    budget.reset(Optional.empty());
+    Assert.assertEquals(0, budget.getUsedBytes());
+    Assert.assertTrue(budget.tryAcquire(Long.MAX_VALUE / 2));
+  }
+
+  @Test
+  public void testConfigureResetsOncePerTransaction() {
+    LocalStagingBudget budget = new LocalStagingBudget();
+    budget.configure("volume_1", Optional.of(100L));
+    Assert.assertTrue(budget.tryAcquire(60));
+    budget.configure("volume_1", Optional.of(100L));
+    Assert.assertEquals(60, budget.getUsedBytes());
+    Assert.assertFalse(budget.tryAcquire(50));
+    budget.configure("volume_2", Optional.of(200L));
+    Assert.assertEquals(0, budget.getUsedBytes());
+    Assert.assertEquals(200, budget.getMaxBytes());
+  }
+}
@@ -0,0 +1,100 @@
+package org.embulk.output.databricks;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMergeKeyRanges {
+  @Test
+  public void testCollectRanges() {
+    MergeKeyRanges ranges = newMergeKeyRanges();
+    addRow(ranges, 10, "b");
+    addRow(ranges, -5, "a");
+    ranges.observeNull(0);
+    ranges.observeNull(2);
+    ranges.endRow();
+    addRow(ranges, 7, "c");
+
+    Map<String, List<String>> value = ranges.toTaskReportValue();
+    Assert.assertEquals(Arrays.asList("number", "-5", "10"), value.get("id"));
+    Assert.assertEquals(Arrays.asList("string", "a", "c"), value.get("name"));
+  }
+
+  @Test
+  public void testUnsupportedKeyHasNoRange() {
+    MergeKeyRanges ranges = newMergeKeyRanges();
+    addRow(ranges, 1, "a");
+    ranges.observeString(0, "1"); // a string value of the numeric column
+    ranges.observeString(2, "b");
+    ranges.endRow();
+    ranges.observeString(2, "c"); // the numeric column isn't set with a supported type
+    ranges.endRow();
+
+    Map<String, List<String>> value = ranges.toTaskReportValue();
+    Assert.assertFalse(value.containsKey("id"));
+    Assert.assertEquals(Arrays.asList("string", "a", "c"), value.get("name"));
+  }
+
+  @Test
+  public void testCollectDateAndTimestampRanges() {
+    MergeKeyRanges ranges =
+        new MergeKeyRanges(
+            Arrays.asList(0, 1), Arrays.asList("day", "at"), Arrays.asList("date", "timestamp"));
+    ranges.observeDate(0, LocalDate.of(2024, 1, 31));
+    ranges.observeTimestamp(1, Instant.parse("2024-01-31T10:00:00Z"));
+    ranges.endRow();
+    ranges.observeDate(0, LocalDate.of(2024, 1, 2));
+    ranges.observeTimestamp(1, Instant.parse("2024-01-02T00:00:00.5Z"));
+    ranges.endRow();
+
+    Map<String, List<String>> value = ranges.toTaskReportValue();
+    Assert.assertEquals(Arrays.asList("date", "2024-01-02", "2024-01-31"), value.get("day"));
+    Assert.assertEquals(
+        Arrays.asList("timestamp", "2024-01-02T00:00:00.500Z", "2024-01-31T10:00:00Z"),
+        value.get("at"));
+
+    Map<String, List<String>> other =
+        Collections.singletonMap("day", Arrays.asList("date", "2023-12-31", "2024-01-01"));
+    Assert.assertEquals(
+        Collections.singletonMap("day", Arrays.asList("date", "2023-12-31", "2024-01-31")),
+        MergeKeyRanges.union(Arrays.asList(other, value)));
+  }
+
+  @Test
+  public void testUnion() {
+    Map<String, List<String>> ranges0 =
+        Collections.singletonMap("id", Arrays.asList("number", "9", "20"));
+    Map<String, List<String>> ranges1 =
+        Collections.singletonMap("id", Arrays.asList("number", "10", "100"));
+    Assert.assertEquals(
+        Collections.singletonMap("id", Arrays.asList("number", "9", "100")),
+        MergeKeyRanges.union(Arrays.asList(ranges0, ranges1)));
+    Assert.assertEquals(
+        Collections.emptyMap(),
+        MergeKeyRanges.union(Arrays.asList(ranges0, Collections.emptyMap())));
+  }
+
+  @Test
+  public void testCompareCodePoints() {
+    // U+FF5E is less than U+1F600 as code points, but not as UTF-16 chars
+    Assert.assertTrue(MergeKeyRanges.compareCodePoints("\uFF5E", "\uD83D\uDE00") < 0);
+    Assert.assertTrue(MergeKeyRanges.compareCodePoints("ab", "abc") < 0);
+  }
+
+  private static MergeKeyRanges newMergeKeyRanges() {
+    return new MergeKeyRanges(
+        Arrays.asList(0, 2), Arrays.asList("id", "name"), Arrays.asList("number", "string"));
+  }
+
+  private static void addRow(MergeKeyRanges ranges, long id, String name) {
+    ranges.observeNumber(0, BigDecimal.valueOf(id));
+    ranges.observeString(2, name);
+    ranges.endRow();
+  }
+}
@@ -0,0 +1,27 @@
+package org.embulk.output.databricks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMetricsHistogram {
+  @Test
+  public void testEmpty() {
+    MetricsHistogram histogram = new MetricsHistogram();
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0.0, histogram.getMean(), 0.0);
+    Assert.assertEquals(0, histogram.getPercentile(95));
+  }
+
+  @Test
+  public void testRecord() {
+    MetricsHistogram histogram = new MetricsHistogram();
+    for (long i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    Assert.assertEquals(100, histogram.getCount());
+    Assert.assertEquals(50.5, histogram.getMean(), 0.001);
+    Assert.assertEquals(100, histogram.getMax());
+    Assert.assertEquals(63, histogram.getPercentile(50));
+    Assert.assertEquals(100, histogram.getPercentile(95));
+  }
+}
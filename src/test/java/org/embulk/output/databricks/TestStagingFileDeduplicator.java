@@ -0,0 +1,72 @@
+package org.embulk.output.databricks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagingFileDeduplicator {
+  @Test
+  public void testKeepLastRowOfEachKey() throws IOException {
+    try (StagingFileDeduplicator deduplicator =
+        new StagingFileDeduplicator(Arrays.asList(0), Long.MAX_VALUE)) {
+      addFile(deduplicator, "1\ta\n", "2\tb\n", "\\N\tc\n");
+      addFile(deduplicator, "1\td\n", "\\N\te\n");
+      Assert.assertEquals(Arrays.asList("1\td", "2\tb", "\\N\tc", "\\N\te"), finish(deduplicator));
+    }
+  }
+
+  @Test
+  public void testKeepLastRowOfEachKeyWithSpill() throws IOException {
+    // every row is spilled to a file
+    try (StagingFileDeduplicator deduplicator =
+        new StagingFileDeduplicator(Arrays.asList(0, 1), 0)) {
+      addFile(deduplicator, "1\tx\ta\n", "2\tx\tb\n", "1\ty\tc\n");
+      addFile(deduplicator, "2\tx\td\n", "3\tx\te\n", "1\tx\tf\n");
+      Assert.assertEquals(
+          Arrays.asList("1\tx\tf", "1\ty\tc", "2\tx\td", "3\tx\te"), finish(deduplicator));
+      Assert.assertTrue(deduplicator.isEmpty());
+    }
+  }
+
+  @Test
+  public void testDeduplicateRows() {
+    try (StagingFileDeduplicator deduplicator =
+        new StagingFileDeduplicator(Arrays.asList(0), Long.MAX_VALUE)) {
+      List<List<String>> rows =
+          Arrays.asList(
+              Arrays.asList("1", "a"),
+              Arrays.asList(null, "b"),
+              Arrays.asList("1", "c"),
+              Arrays.asList("2", "d"));
+      Assert.assertEquals(
+          Arrays.asList(Arrays.asList(null, "b"), Arrays.asList("1", "c"), Arrays.asList("2", "d")),
+          deduplicator.deduplicateRows(rows));
+    }
+  }
+
+  private static void addFile(StagingFileDeduplicator deduplicator, String... lines)
+      throws IOException {
+    File file = File.createTempFile("test-staging-file-deduplicator-", ".tsv");
+    try {
+      Files.write(file.toPath(), String.join("", lines).getBytes(StandardCharsets.UTF_8));
+      deduplicator.add(file);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static List<String> finish(StagingFileDeduplicator deduplicator) throws IOException {
+    List<String> lines = new ArrayList<>();
+    long rows = deduplicator.finish(lines::add);
+    Assert.assertEquals(lines.size(), rows);
+    Collections.sort(lines);
+    return lines;
+  }
+}
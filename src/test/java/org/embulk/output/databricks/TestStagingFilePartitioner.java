@@ -0,0 +1,79 @@
+package org.embulk.output.databricks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagingFilePartitioner {
+  @Test
+  public void testSplitWithLeastRecentlyUsedWriterClosed() throws IOException {
+    File file = writeFile("a\t1\n", "b\t2\n", "a\t3\n", "\\N\t4\n", "b\t5\n");
+    try (StagingFilePartitioner partitioner = new StagingFilePartitioner(Arrays.asList(0), 1)) {
+      partitioner.split(file);
+      List<StagingFilePartitioner.PartitionFile> files = partitioner.takeFiles(0);
+      Assert.assertEquals(3, files.size());
+      assertPartitionFile(files.get(0), Arrays.asList("a"), "a\t1", "a\t3");
+      assertPartitionFile(files.get(1), Arrays.asList("b"), "b\t2", "b\t5");
+      assertPartitionFile(files.get(2), Arrays.asList((String) null), "\\N\t4");
+      Assert.assertTrue(partitioner.isEmpty());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testTakeFilesGrownToMinBytes() throws IOException {
+    File file = writeFile("a\t1\n", "b\t2\n", "a\t3\n");
+    try (StagingFilePartitioner partitioner = new StagingFilePartitioner(Arrays.asList(0), 10)) {
+      partitioner.split(file);
+      List<StagingFilePartitioner.PartitionFile> files = partitioner.takeFiles(8);
+      Assert.assertEquals(1, files.size());
+      assertPartitionFile(files.get(0), Arrays.asList("a"), "a\t1", "a\t3");
+      Assert.assertFalse(partitioner.isEmpty());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testPartitionFilesAreCountedInBudget() throws IOException {
+    LocalStagingBudget budget = LocalStagingBudget.getInstance();
+    long usedBytes = budget.getUsedBytes();
+    File file = writeFile("a\t1\n", "b\t2\n", "a\t3\n");
+    try (StagingFilePartitioner partitioner = new StagingFilePartitioner(Arrays.asList(0), 10)) {
+      partitioner.split(file);
+      Assert.assertEquals(usedBytes + 12, budget.getUsedBytes());
+      List<StagingFilePartitioner.PartitionFile> files = partitioner.takeFiles(8);
+      files.get(0).getFile().delete();
+      Assert.assertEquals(usedBytes + 4, budget.getUsedBytes());
+    } finally {
+      file.delete();
+    }
+    Assert.assertEquals(usedBytes, budget.getUsedBytes());
+  }
+
+  private static File writeFile(String... lines) throws IOException {
+    File file = File.createTempFile("test-staging-file-partitioner-", ".tsv");
+    Files.write(file.toPath(), String.join("", lines).getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static void assertPartitionFile(
+      StagingFilePartitioner.PartitionFile partitionFile, List<String> values, String... lines)
+      throws IOException {
+    try {
+      Assert.assertEquals(values, partitionFile.getValues());
+      Assert.assertEquals(lines.length, partitionFile.getRows());
+      Assert.assertEquals(
+          Arrays.asList(lines),
+          Files.readAllLines(partitionFile.getFile().toPath(), StandardCharsets.UTF_8));
+    } finally {
+      partitionFile.getFile().delete();
+    }
+  }
+}
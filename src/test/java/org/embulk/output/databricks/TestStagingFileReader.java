@@ -0,0 +1,19 @@
+package org.embulk.output.databricks;
+
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagingFileReader {
+  @Test
+  public void testParseLine() {
+    Assert.assertEquals(Arrays.asList("a", "1", "x y"), StagingFileReader.parseLine("a\t1\tx y"));
+  }
+
+  @Test
+  public void testParseLineWithNullAndEmptyString() {
+    Assert.assertEquals(
+        Arrays.asList(null, null, "", "a\"b"),
+        StagingFileReader.parseLine("\\N\t\t\"\"\t\"a\"\"b\""));
+  }
+}
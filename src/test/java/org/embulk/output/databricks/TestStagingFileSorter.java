@@ -0,0 +1,33 @@
+package org.embulk.output.databricks;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagingFileSorter {
+  @Test
+  public void testSortLinesByNumericKey() {
+    StagingFileSorter sorter = new StagingFileSorter(Arrays.asList(1), Arrays.asList(true));
+    List<String> lines = Arrays.asList("a\t10", "b\t9", "c\t\\N", "d\t-1.5");
+    Assert.assertEquals(
+        Arrays.asList("c\t\\N", "d\t-1.5", "b\t9", "a\t10"), sorter.sortLines(lines));
+  }
+
+  @Test
+  public void testSortLinesByMultipleKeysIsStable() {
+    StagingFileSorter sorter =
+        new StagingFileSorter(Arrays.asList(0, 1), Arrays.asList(false, false));
+    List<String> lines = Arrays.asList("b\tx\t1", "a\ty\t2", "a\tx\t3", "a\tx\t4");
+    Assert.assertEquals(
+        Arrays.asList("a\tx\t3", "a\tx\t4", "a\ty\t2", "b\tx\t1"), sorter.sortLines(lines));
+  }
+
+  @Test
+  public void testSortLinesByCodePoints() {
+    StagingFileSorter sorter = new StagingFileSorter(Arrays.asList(0), Arrays.asList(false));
+    // U+1F600 is after U+FF61 by code points, but before it by UTF-16 chars
+    List<String> lines = Arrays.asList("\uD83D\uDE00\t1", "\uFF61\t2");
+    Assert.assertEquals(Arrays.asList("\uFF61\t2", "\uD83D\uDE00\t1"), sorter.sortLines(lines));
+  }
+}
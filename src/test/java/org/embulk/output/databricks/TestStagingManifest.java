@@ -0,0 +1,85 @@
+package org.embulk.output.databricks;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagingManifest {
+  @Test
+  public void testSerializeAndParse() {
+    StagingManifest manifest = new StagingManifest();
+    manifest.put(entry(1, "crc32:00000002", StagingManifest.Status.LOADED, "t"));
+    manifest.put(entry(0, "crc32:00000001", StagingManifest.Status.UPLOADED, ""));
+
+    StagingManifest parsed = StagingManifest.parse(manifest.serialize());
+    List<StagingManifest.Entry> entries = parsed.getEntries();
+    Assert.assertEquals(2, entries.size());
+    Assert.assertEquals(0, entries.get(0).getSequence());
+    Assert.assertEquals("/Volumes/c/s/v/file0", entries.get(0).getFilePath());
+    Assert.assertEquals(StagingManifest.Status.UPLOADED, entries.get(0).getStatus());
+    Assert.assertEquals("", entries.get(0).getTable());
+    Assert.assertEquals(StagingManifest.Status.LOADED, entries.get(1).getStatus());
+    Assert.assertEquals("t", entries.get(1).getTable());
+    Assert.assertEquals(10, entries.get(1).getRows());
+    Assert.assertEquals(100, entries.get(1).getBytes());
+    Assert.assertEquals(manifest.serialize(), parsed.serialize());
+  }
+
+  @Test
+  public void testFindRequiresSameChecksum() {
+    StagingManifest manifest = new StagingManifest();
+    manifest.put(entry(0, "crc32:00000001", StagingManifest.Status.UPLOADED, ""));
+
+    Assert.assertTrue(manifest.find(0, "crc32:00000001").isPresent());
+    Assert.assertFalse(manifest.find(0, "crc32:00000002").isPresent());
+    Assert.assertFalse(manifest.find(1, "crc32:00000001").isPresent());
+  }
+
+  @Test
+  public void testWithStatusReplacesEntry() {
+    StagingManifest manifest = new StagingManifest();
+    StagingManifest.Entry uploaded =
+        entry(0, "crc32:00000001", StagingManifest.Status.UPLOADED, "");
+    manifest.put(uploaded);
+    manifest.put(uploaded.withStatus(StagingManifest.Status.LOADED_AND_DELETED, "t"));
+
+    Assert.assertEquals(1, manifest.getEntries().size());
+    StagingManifest.Entry found = manifest.find(0, "crc32:00000001").get();
+    Assert.assertEquals(StagingManifest.Status.LOADED_AND_DELETED, found.getStatus());
+    Assert.assertEquals("t", found.getTable());
+  }
+
+  @Test
+  public void testLaterSegmentReplacesEntries() {
+    StagingManifest manifest = new StagingManifest();
+    manifest.putAll(
+        StagingManifest.parse(
+            StagingManifest.serialize(
+                Arrays.asList(
+                    entry(0, "crc32:00000001", StagingManifest.Status.UPLOADED, ""),
+                    entry(1, "crc32:00000002", StagingManifest.Status.UPLOADED, "")))));
+    manifest.putAll(
+        StagingManifest.parse(
+            StagingManifest.serialize(
+                Arrays.asList(
+                    entry(0, "crc32:00000001", StagingManifest.Status.LOADED, "t")))));
+
+    List<StagingManifest.Entry> entries = manifest.getEntries();
+    Assert.assertEquals(2, entries.size());
+    Assert.assertEquals(StagingManifest.Status.LOADED, entries.get(0).getStatus());
+    Assert.assertEquals(StagingManifest.Status.UPLOADED, entries.get(1).getStatus());
+  }
+
+  @Test
+  public void testParseInvalidLine() {
+    Assert.assertThrows(
+        IllegalArgumentException.class, () -> StagingManifest.parse("0\tpath\t10\n"));
+  }
+
+  private static StagingManifest.Entry entry(
+      long sequence, String checksum, StagingManifest.Status status, String table) {
+    return new StagingManifest.Entry(
+        sequence, "/Volumes/c/s/v/file" + sequence, 10, 100, checksum, status, table);
+  }
+}
@@ -0,0 +1,40 @@
+package org.embulk.output.databricks;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.embulk.output.jdbc.TableIdentifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTableMetadataCache {
+  private final TableIdentifier table = new TableIdentifier("catalog", "schema", "table");
+
+  @Test
+  public void testCachedInTransaction() throws SQLException {
+    TableMetadataCache cache = new TableMetadataCache();
+    AtomicInteger loads = new AtomicInteger();
+    cache.begin();
+    Assert.assertTrue(cache.tableExists(table, () -> loads.incrementAndGet() > 0));
+    Assert.assertTrue(cache.tableExists(table, () -> loads.incrementAndGet() > 0));
+    Assert.assertEquals(1, loads.get());
+
+    cache.invalidate(table);
+    Assert.assertTrue(cache.tableExists(table, () -> loads.incrementAndGet() > 0));
+    Assert.assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testNotCachedOutsideTransaction() throws SQLException {
+    TableMetadataCache cache = new TableMetadataCache();
+    AtomicInteger loads = new AtomicInteger();
+    cache.tableExists(table, () -> loads.incrementAndGet() > 0);
+    cache.tableExists(table, () -> loads.incrementAndGet() > 0);
+    Assert.assertEquals(2, loads.get());
+
+    cache.begin();
+    cache.tableExists(table, () -> loads.incrementAndGet() > 0);
+    cache.end();
+    cache.tableExists(table, () -> loads.incrementAndGet() > 0);
+    Assert.assertEquals(4, loads.get());
+  }
+}